@@ -13,9 +13,13 @@ import com.matejdro.pebblenotificationcenter.pebble.modules.SystemModule;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+import timber.log.Timber;
+
 public class GeneralNCDatabase extends SQLiteOpenHelper {
 
 	private static GeneralNCDatabase instance;
@@ -31,6 +35,9 @@ public class GeneralNCDatabase extends SQLiteOpenHelper {
 
 	private Context context;
 
+	//In-memory copy of notification modes from PebbleApps table. It is reloaded after every write.
+	private volatile Map<UUID, Integer> notificationModes;
+
 	private GeneralNCDatabase(Context context) {
 		super(context, "data", null, 1);
 		this.context = context;
@@ -62,6 +69,7 @@ public class GeneralNCDatabase extends SQLiteOpenHelper {
 		contentValues.put("NotificationMode", pebbleApp.getNotificationMode());
 
 		getWritableDatabase().insert("PebbleApps", null, contentValues);
+		loadNotificationModes();
 	}
 
 	public void addPebbleApps(Collection<PebbleApp> apps)
@@ -85,6 +93,7 @@ public class GeneralNCDatabase extends SQLiteOpenHelper {
 		database.setTransactionSuccessful();
 		database.endTransaction();
 
+		loadNotificationModes();
 	}
 
 
@@ -115,6 +124,7 @@ public class GeneralNCDatabase extends SQLiteOpenHelper {
 		contentValues.put("NotificationMode", notificationMode);
 
 		getWritableDatabase().update("PebbleApps", contentValues, "UUID = ?", new String[]{uuid.toString()});
+		loadNotificationModes();
 	}
 
 	public void setAllPebbleAppNotificationMode(int notificationMode)
@@ -123,24 +133,47 @@ public class GeneralNCDatabase extends SQLiteOpenHelper {
 		contentValues.put("NotificationMode", notificationMode);
 
 		getWritableDatabase().update("PebbleApps", contentValues, null, null);
+		loadNotificationModes();
 	}
 
+	/**
+	 * @return Notification mode of the app, served from memory. Apps that are not in the table use mode of the unknown app.
+	 */
 	public int getPebbleAppNotificationMode(@Nullable UUID uuid)
 	{
-		if (uuid == null)
-			return getPebbleAppNotificationMode(SystemModule.UNKNOWN_UUID);
+		Map<UUID, Integer> modes = notificationModes;
+		if (modes == null)
+			modes = loadNotificationModes();
+
+		Integer notificationMode = uuid == null ? null : modes.get(uuid);
+		if (notificationMode == null)
+			notificationMode = modes.get(SystemModule.UNKNOWN_UUID);
+		if (notificationMode == null)
+			notificationMode = PebbleAppNotificationMode.OPEN_IN_NOTIFICATION_CENTER;
+
+		return notificationMode;
+	}
 
-		Cursor cursor = getReadableDatabase().rawQuery("SELECT NotificationMode FROM PebbleApps WHERE UUID = ?", new String[]{ uuid.toString() });
-		if (!cursor.moveToNext())
+	private synchronized Map<UUID, Integer> loadNotificationModes()
+	{
+		Map<UUID, Integer> modes = new HashMap<>();
+
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT UUID, NotificationMode FROM PebbleApps", null);
+		while (cursor.moveToNext())
 		{
-			cursor.close();
-			return getPebbleAppNotificationMode(SystemModule.UNKNOWN_UUID);
+			try
+			{
+				modes.put(UUID.fromString(cursor.getString(0)), cursor.getInt(1));
+			}
+			catch (IllegalArgumentException e)
+			{
+				Timber.w("Invalid UUID in Pebble app list: %s", cursor.getString(0));
+			}
 		}
-
-		int notificationMode = cursor.getInt(0);
 		cursor.close();
 
-		return notificationMode;
+		notificationModes = modes;
+		return modes;
 	}
 
 	public void deletePebbleApp(UUID uuid)
@@ -149,11 +182,13 @@ public class GeneralNCDatabase extends SQLiteOpenHelper {
 			return;
 
 		getWritableDatabase().delete("PebbleApps", "UUID = ?", new String[]{uuid.toString()});
+		loadNotificationModes();
 	}
 
 	public void deleteAllPebbleApps()
 	{
 		getWritableDatabase().delete("PebbleApps", "UUID <> ?", new String[]{ SystemModule.UNKNOWN_UUID.toString() });
+		loadNotificationModes();
 	}
 
 	public PebbleApp getPebbleApp(UUID uuid)
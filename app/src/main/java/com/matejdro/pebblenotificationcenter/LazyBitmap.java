@@ -0,0 +1,60 @@
+package com.matejdro.pebblenotificationcenter;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+/**
+ * Handle to the bitmap that is only extracted when somebody actually needs it.
+ *
+ * Once loaded, bitmap is kept until {@link #release()} is called. Released bitmap is loaded again on next request.
+ */
+public abstract class LazyBitmap
+{
+    private Bitmap bitmap;
+    private boolean loaded = false;
+
+    public synchronized @Nullable Bitmap get()
+    {
+        if (!loaded)
+        {
+            bitmap = load();
+            loaded = true;
+        }
+
+        return bitmap;
+    }
+
+    public synchronized void release()
+    {
+        bitmap = null;
+        loaded = false;
+    }
+
+    protected abstract @Nullable Bitmap load();
+
+    /**
+     * @return Handle that wraps already existing bitmap. Such handle cannot re-create bitmap, so it is never released.
+     */
+    public static LazyBitmap of(@Nullable final Bitmap bitmap)
+    {
+        return new LazyBitmap()
+        {
+            @Override
+            public Bitmap get()
+            {
+                return bitmap;
+            }
+
+            @Override
+            public void release()
+            {
+            }
+
+            @Override
+            protected Bitmap load()
+            {
+                return bitmap;
+            }
+        };
+    }
+}
@@ -3,7 +3,6 @@ package com.matejdro.pebblenotificationcenter;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.SparseArray;
 
 import com.matejdro.pebblecommons.pebble.PebbleCommunication;
 import com.matejdro.pebblecommons.pebble.PebbleDeveloperConnection;
@@ -27,7 +26,7 @@ public class NCTalkerService extends PebbleTalkerService
     private DefaultAppSettingsStorage defaultSettingsStorage;
     private NotificationHistoryStorage historyDb;
 
-    public SparseArray<ProcessedNotification> sentNotifications = new SparseArray<ProcessedNotification>();
+    public final SentNotificationRegistry sentNotifications = new SentNotificationRegistry();
 
     private LocationLookup locationLookup;
 
@@ -54,6 +53,7 @@ public class NCTalkerService extends PebbleTalkerService
     @Override
     public void onDestroy()
     {
+        NotificationSendingModule.get(this).shutdown();
         historyDb.close();
         locationLookup.close();
 
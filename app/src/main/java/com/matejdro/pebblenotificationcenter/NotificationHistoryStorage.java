@@ -3,115 +3,527 @@ package com.matejdro.pebblenotificationcenter;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteCantOpenDatabaseException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.preference.PreferenceManager;
+import android.support.annotation.Nullable;
+
+import com.matejdro.pebblenotificationcenter.pebble.ImageRenderCache;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
 
+/**
+ * Notification history database.
+ *
+ * Notifications are stored through write-behind queue: {@link #storeNotification(long, String, String, String, LazyBitmap)}
+ * only queues the notification and queue is written in a single transaction after a short delay (or sooner when it fills up).
+ * Icons are stored only once in separate table, addressed by the hash of their content.
+ *
+ * Retention policy (maximum number, age and size of stored notifications) is enforced with every written batch.
+ * Row count and size are tracked in memory, so enforcement only touches rows that are actually deleted.
+ */
 public class NotificationHistoryStorage extends SQLiteOpenHelper {
+	private static final int WRITE_DELAY_MS = 1500;
+	private static final int MAX_BATCH_SIZE = 25;
+	private static final int SIZE_CLEANUP_CHUNK = 10;
+
+	private static final String ROW_SIZE_EXPRESSION = "IFNULL(length(CAST(Title AS BLOB)), 0) + IFNULL(length(CAST(Subtitle AS BLOB)), 0) + IFNULL(length(CAST(Text AS BLOB)), 0)";
 
+	//Incremented whenever any instance clears the database, so other instances know that their counters are invalid
+	private static final AtomicInteger clearGeneration = new AtomicInteger();
 
 	private Context context;
-	
+
+	private final ConcurrentLinkedQueue<PendingNotification> pendingNotifications = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final Object writeLock = new Object();
+	private ScheduledExecutorService writeExecutor;
+
+	//Guards queueing against close(). Separate from writeLock, so queueing never waits for a batch that is being written.
+	private final Object queueLock = new Object();
+	private volatile boolean closed = false;
+
+	//Following fields are guarded by writeLock
+	private long rowCount = -1;
+	private long totalBytes = 0;
+	private int countersGeneration;
+
 	public NotificationHistoryStorage(Context context) {
-		super(context, "notifications", null, 2);
+		super(context, "notifications", null, 4);
 		this.context = context;
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			setWriteAheadLoggingEnabled(true);
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly())
+			db.enableWriteAheadLogging();
 	}
 
 
 	@Override
 	public void onCreate(SQLiteDatabase db) {
-		db.execSQL("CREATE TABLE IF NOT EXISTS notifications (PostTime INTEGER, Title STRING, Subtitle STRING, Text STRING, Icon BLOB DEFAULT NULL)");
+		db.execSQL("CREATE TABLE IF NOT EXISTS notifications (PostTime INTEGER, Title STRING, Subtitle STRING, Text STRING, Icon BLOB DEFAULT NULL, IconHash TEXT DEFAULT NULL)");
+		db.execSQL("CREATE TABLE IF NOT EXISTS icons (Hash TEXT PRIMARY KEY, Data BLOB)");
+		createIndexes(db);
+	}
+
+	private static void createIndexes(SQLiteDatabase db)
+	{
+		db.execSQL("CREATE INDEX IF NOT EXISTS notificationsPostTime ON notifications (PostTime)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS notificationsIconHash ON notifications (IconHash)");
 	}
 
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		if (newVersion == 2)
+		if (oldVersion < 2)
 		{
 			db.execSQL("ALTER TABLE notifications ADD COLUMN Icon BLOB DEFAULT NULL");
 		}
+
+		if (oldVersion < 3)
+		{
+			db.execSQL("ALTER TABLE notifications ADD COLUMN IconHash TEXT DEFAULT NULL");
+			db.execSQL("CREATE TABLE IF NOT EXISTS icons (Hash TEXT PRIMARY KEY, Data BLOB)");
+			moveIconsToIconTable(db);
+		}
+
+		if (oldVersion < 4)
+		{
+			createIndexes(db);
+		}
 	}
 
+	private static void moveIconsToIconTable(SQLiteDatabase db)
+	{
+		Cursor cursor = db.rawQuery("SELECT rowid, Icon FROM notifications WHERE Icon IS NOT NULL", null);
+		while (cursor.moveToNext())
+		{
+			long rowId = cursor.getLong(0);
+			byte[] iconData = cursor.getBlob(1);
+			String hash = getStoredIconHash(iconData);
+
+			ContentValues iconValues = new ContentValues();
+			iconValues.put("Hash", hash);
+			iconValues.put("Data", iconData);
+			db.insertWithOnConflict("icons", null, iconValues, SQLiteDatabase.CONFLICT_IGNORE);
+
+			ContentValues notificationValues = new ContentValues();
+			notificationValues.put("IconHash", hash);
+			notificationValues.putNull("Icon");
+			db.update("notifications", notificationValues, "rowid = ?", new String[] { Long.toString(rowId) });
+		}
 
-	public void storeNotification(long time, String title, String subtitle, String text, Bitmap icon)
+		cursor.close();
+	}
+
+	/**
+	 * Queue notification to be stored into history. This method does not block.
+	 *
+	 * @param icon Handle of the icon. Icon is extracted on the writer thread.
+	 */
+	public void storeNotification(long time, String title, String subtitle, String text, @Nullable LazyBitmap icon)
 	{
-		ContentValues values = new ContentValues();
-		values.put("PostTime", time);
-		values.put("Title", title);
-		values.put("Subtitle", subtitle);
-		values.put("Text", text);
+		synchronized (queueLock)
+		{
+			if (closed)
+			{
+				Timber.w("History database is closed. Notification will not be stored.");
+				return;
+			}
 
-		if (icon == null)
-			values.put("Icon", (byte[]) null);
-		else
+			pendingNotifications.add(new PendingNotification(time, title, subtitle, text, icon));
+
+			if (pendingNotifications.size() >= MAX_BATCH_SIZE)
+				scheduleFlush(0);
+			else
+				scheduleFlush(WRITE_DELAY_MS);
+		}
+	}
+
+	private void scheduleFlush(long delayMs)
+	{
+		//Delayed flush is only scheduled once per batch so bursts get collected together
+		if (!flushScheduled.compareAndSet(false, true) && delayMs > 0)
+			return;
+
+		getWriteExecutor().schedule(new Runnable()
 		{
-			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-			icon.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
-			values.put("Icon", byteArrayOutputStream.toByteArray());
+			@Override
+			public void run()
+			{
+				flushScheduled.set(false);
+
+				synchronized (writeLock)
+				{
+					if (closed)
+						return;
+
+					flush();
+				}
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized ScheduledExecutorService getWriteExecutor()
+	{
+		if (writeExecutor == null)
+		{
+			writeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "NC-HistoryWriter");
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+
+		return writeExecutor;
+	}
+
+	/**
+	 * Write all queued notifications into database. Blocks until they are written.
+	 */
+	public void flush()
+	{
+		synchronized (writeLock)
+		{
+			List<PendingNotification> batch = new ArrayList<>(pendingNotifications.size());
+			PendingNotification notification;
+			while ((notification = pendingNotifications.poll()) != null)
+				batch.add(notification);
+
+			if (batch.isEmpty())
+				return;
+
+			try
+			{
+				writeBatch(batch);
+			}
+			catch (SQLiteCantOpenDatabaseException e)
+			{
+				Timber.e(e, "Database open exception!");
+			}
+			catch (SQLiteException e)
+			{
+				Timber.e(e, "History write failed!");
+			}
 		}
+	}
 
+	private void writeBatch(List<PendingNotification> batch)
+	{
+		SQLiteDatabase database = getWritableDatabase();
+		database.beginTransaction();
 		try
 		{
-			getWritableDatabase().insert("notifications", null, values);
+			loadCounters(database);
+
+			for (PendingNotification notification : batch)
+			{
+				ContentValues values = new ContentValues();
+				values.put("PostTime", notification.time);
+				values.put("Title", notification.title);
+				values.put("Subtitle", notification.subtitle);
+				values.put("Text", notification.text);
+				values.put("IconHash", storeIcon(database, notification.icon == null ? null : notification.icon.get()));
+
+				//Icon is not needed anymore after it is stored. It will be extracted again if notification still needs it.
+				if (notification.icon != null)
+					notification.icon.release();
+
+				if (database.insert("notifications", null, values) >= 0)
+				{
+					rowCount++;
+					totalBytes += getTextSize(notification.title) + getTextSize(notification.subtitle) + getTextSize(notification.text);
+				}
+			}
+
+			enforceRetentionPolicy(database);
+
+			database.setTransactionSuccessful();
+		}
+		catch (RuntimeException e)
+		{
+			//Counters may not match rolled back data anymore
+			rowCount = -1;
+			throw e;
 		}
-		catch (SQLiteCantOpenDatabaseException e)
+		finally
 		{
-			Timber.e(e, "Database open exception!");
-			e.printStackTrace();
+			database.endTransaction();
 		}
+
+		Timber.d("Stored %d notifications into history", batch.size());
 	}
 
-	@Override
-	public synchronized void close() {
-		getWritableDatabase().close();
-		super.close();
-	}	
+	/**
+	 * @return Hash of the stored icon or {@code null} if there is no icon.
+	 */
+	private String storeIcon(SQLiteDatabase database, Bitmap icon)
+	{
+		if (icon == null)
+			return null;
 
-    public void clearDatabase()
-    {
-        SQLiteDatabase database = getWritableDatabase();
+		String hash = ImageRenderCache.getBitmapHash(icon);
 
-        database.delete("notifications", null, null);
+		Cursor cursor = database.rawQuery("SELECT 1 FROM icons WHERE Hash = ?", new String[] { hash });
+		boolean alreadyStored = cursor.moveToNext();
+		cursor.close();
 
+		//Only compress icons that we do not have yet
+		if (!alreadyStored)
+		{
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			icon.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
 
-        Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
-        editor.putLong("lastCleanup", System.currentTimeMillis());
-        editor.apply();
-    }
+			byte[] iconData = byteArrayOutputStream.toByteArray();
 
-	public void cleanDatabase()
+			ContentValues values = new ContentValues();
+			values.put("Hash", hash);
+			values.put("Data", iconData);
+			if (database.insertWithOnConflict("icons", null, values, SQLiteDatabase.CONFLICT_IGNORE) >= 0)
+				totalBytes += iconData.length;
+		}
+
+		return hash;
+	}
+
+	private void loadCounters(SQLiteDatabase database)
 	{
-		SQLiteDatabase database = getWritableDatabase();
-		Cursor cursor = database.rawQuery("SELECT MIN(PostTime) FROM (SELECT PostTime FROM notifications ORDER BY PostTime DESC LIMIT 100)", null);
-		if (!cursor.moveToNext())
+		if (rowCount >= 0 && countersGeneration == clearGeneration.get())
 			return;
 
-		long lastDate = cursor.getLong(0);
+		countersGeneration = clearGeneration.get();
 
-		database.delete("notifications", "PostTime < ?", new String[] {Long.toString(lastDate)});
+		Cursor cursor = database.rawQuery("SELECT COUNT(*), IFNULL(SUM(" + ROW_SIZE_EXPRESSION + "), 0) FROM notifications", null);
+		cursor.moveToNext();
+		rowCount = cursor.getLong(0);
+		totalBytes = cursor.getLong(1);
+		cursor.close();
+
+		cursor = database.rawQuery("SELECT IFNULL(SUM(length(Data)), 0) FROM icons", null);
+		cursor.moveToNext();
+		totalBytes += cursor.getLong(0);
+		cursor.close();
+	}
+
+	private void enforceRetentionPolicy(SQLiteDatabase database)
+	{
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		int maxNotifications = getIntPreference(preferences, PebbleNotificationCenter.HISTORY_MAX_NOTIFICATIONS, 100);
+		int maxAgeDays = getIntPreference(preferences, PebbleNotificationCenter.HISTORY_MAX_AGE_DAYS, 0);
+		int maxSizeKb = getIntPreference(preferences, PebbleNotificationCenter.HISTORY_MAX_SIZE_KB, 0);
+
+		long rowsToDelete = 0;
+
+		if (maxAgeDays > 0)
+		{
+			long oldestAllowed = System.currentTimeMillis() - maxAgeDays * 24L * 3600 * 1000;
+			Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM notifications WHERE PostTime < ?", new String[] { Long.toString(oldestAllowed) });
+			cursor.moveToNext();
+			rowsToDelete = cursor.getLong(0);
+			cursor.close();
+		}
+
+		if (maxNotifications > 0)
+			rowsToDelete = Math.max(rowsToDelete, rowCount - maxNotifications);
+
+		if (rowsToDelete > 0)
+			deleteOldestNotifications(database, rowsToDelete);
+
+		if (maxSizeKb > 0)
+		{
+			long maxBytes = maxSizeKb * 1024L;
+			while (totalBytes > maxBytes && rowCount > 0)
+				deleteOldestNotifications(database, SIZE_CLEANUP_CHUNK);
+		}
+	}
 
+	private void deleteOldestNotifications(SQLiteDatabase database, long amount)
+	{
+		List<Long> rowIds = new ArrayList<>();
+		Set<String> iconHashes = new HashSet<>();
 
-		Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
-		editor.putLong("lastCleanup", System.currentTimeMillis());
-		editor.apply();
+		Cursor cursor = database.rawQuery("SELECT rowid, IconHash, " + ROW_SIZE_EXPRESSION + " FROM notifications ORDER BY PostTime ASC LIMIT ?", new String[] { Long.toString(amount) });
+		while (cursor.moveToNext())
+		{
+			rowIds.add(cursor.getLong(0));
+			if (!cursor.isNull(1))
+				iconHashes.add(cursor.getString(1));
 
+			totalBytes -= cursor.getLong(2);
+		}
 		cursor.close();
+
+		for (long rowId : rowIds)
+		{
+			database.delete("notifications", "rowid = ?", new String[] { Long.toString(rowId) });
+		}
+		rowCount -= rowIds.size();
+
+		for (String hash : iconHashes)
+		{
+			cursor = database.rawQuery("SELECT length(Data) FROM icons WHERE Hash = ? AND NOT EXISTS (SELECT 1 FROM notifications WHERE IconHash = ?)", new String[] { hash, hash });
+			if (cursor.moveToNext())
+			{
+				totalBytes -= cursor.getLong(0);
+				database.delete("icons", "Hash = ?", new String[] { hash });
+			}
+			cursor.close();
+		}
+
+		//Safety net for the case where table is empty but counters think otherwise
+		if (rowIds.isEmpty())
+		{
+			rowCount = 0;
+			totalBytes = 0;
+		}
+
+		Timber.d("Deleted %d old notifications from history", rowIds.size());
 	}
 
+	private static int getTextSize(String text)
+	{
+		if (text == null)
+			return 0;
+
+		return text.getBytes(Charset.forName("UTF-8")).length;
+	}
 
-	public void tryCleanDatabase()
+	private static int getIntPreference(SharedPreferences preferences, String key, int defaultValue)
 	{
-		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-		long lastCleanup = preferences.getLong("lastCleanup", 0);
-		if (System.currentTimeMillis() - lastCleanup > 24 * 3600 * 1000)
-			cleanDatabase();
+		try
+		{
+			return Integer.parseInt(preferences.getString(key, Integer.toString(defaultValue)));
+		}
+		catch (NumberFormatException e)
+		{
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return Same hash that {@link #storeIcon(SQLiteDatabase, Bitmap)} uses, so migrated icons are shared with new notifications.
+	 */
+	private static String getStoredIconHash(byte[] iconData)
+	{
+		Bitmap icon = BitmapFactory.decodeByteArray(iconData, 0, iconData.length);
+		if (icon == null)
+			return getDataHash(iconData);
+
+		String hash = ImageRenderCache.getBitmapHash(icon);
+		icon.recycle();
+		return hash;
+	}
+
+	private static String getDataHash(byte[] data)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder hash = new StringBuilder(40);
+			for (byte b : digest.digest(data))
+				hash.append(String.format("%02x", b));
+
+			return hash.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write all queued notifications and close the database.
+	 */
+	@Override
+	public void close() {
+		//After this, nothing can be queued or scheduled anymore, so final flush below writes everything that was queued
+		synchronized (queueLock)
+		{
+			closed = true;
+		}
+
+		//Lock order must always be writeLock first and then database helper, otherwise writer thread could deadlock with us
+		synchronized (writeLock)
+		{
+			flush();
+		}
+
+		synchronized (this)
+		{
+			if (writeExecutor != null)
+				writeExecutor.shutdown();
+		}
+
+		super.close();
+	}
+
+    public void clearDatabase()
+    {
+        synchronized (writeLock)
+        {
+            pendingNotifications.clear();
+
+            SQLiteDatabase database = getWritableDatabase();
+
+            database.delete("notifications", null, null);
+            database.delete("icons", null, null);
+
+            ImageRenderCache.getInstance().clearDisk();
+
+            rowCount = 0;
+            totalBytes = 0;
+            countersGeneration = clearGeneration.incrementAndGet();
+        }
+    }
+
+	private static class PendingNotification
+	{
+		private final long time;
+		private final String title;
+		private final String subtitle;
+		private final String text;
+		private final LazyBitmap icon;
+
+		private PendingNotification(long time, String title, String subtitle, String text, LazyBitmap icon)
+		{
+			this.time = time;
+			this.title = title;
+			this.subtitle = subtitle;
+			this.text = text;
+			this.icon = icon;
+		}
 	}
 }
@@ -9,7 +9,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.matejdro.pebblenotificationcenter.appsetting.AppSettingStorage;
-import com.matejdro.pebblenotificationcenter.appsetting.SharedPreferencesAppStorage;
 import com.matejdro.pebblenotificationcenter.notifications.actions.NotificationAction;
 import com.matejdro.pebblenotificationcenter.pebble.NativeNotificationIcon;
 
@@ -37,8 +36,8 @@ public class PebbleNotification implements Parcelable
     private boolean hidingTextDisallowed;
     private String wearGroupKey;
     private int color;
-    private Bitmap bigNotificationImage;
-    private Bitmap notificationIcon;
+    private LazyBitmap bigNotificationImage;
+    private LazyBitmap notificationIcon;
     private NativeNotificationIcon nativeNotificationIcon;
     private long[] forcedVibrationPattern;
 
@@ -129,10 +128,7 @@ public class PebbleNotification implements Parcelable
     {
         if (settingStorage == null)
         {
-            if (key.getPackage() == null)
-                settingStorage = PebbleNotificationCenter.getInMemorySettings().getDefaultSettingsStorage();
-            else
-                settingStorage = new SharedPreferencesAppStorage(context, key.getPackage(), PebbleNotificationCenter.getInMemorySettings().getDefaultSettingsStorage());
+            settingStorage = PebbleNotificationCenter.getInMemorySettings().getAppSettingStorage(key.getPackage());
         }
 
         return settingStorage;
@@ -248,26 +244,70 @@ public class PebbleNotification implements Parcelable
         this.color = color;
     }
 
+    /**
+     * Image is extracted on first call. Call {@link #releaseImages()} when it is not needed anymore.
+     */
     public @Nullable Bitmap getBigNotificationImage()
     {
-        return bigNotificationImage;
+        return bigNotificationImage == null ? null : bigNotificationImage.get();
     }
 
     public void setBigNotificationImage(@Nullable Bitmap bigNotificationImage)
+    {
+        this.bigNotificationImage = LazyBitmap.of(bigNotificationImage);
+    }
+
+    public void setLazyBigNotificationImage(@Nullable LazyBitmap bigNotificationImage)
     {
         this.bigNotificationImage = bigNotificationImage;
     }
 
-    public Bitmap getNotificationIcon()
+    /**
+     * Icon is extracted on first call. Call {@link #releaseImages()} when it is not needed anymore.
+     */
+    public @Nullable Bitmap getNotificationIcon()
+    {
+        return notificationIcon == null ? null : notificationIcon.get();
+    }
+
+    /**
+     * @return Handle of the icon, so it can be extracted on another thread, or {@code null} if there is no icon.
+     */
+    public @Nullable LazyBitmap getLazyNotificationIcon()
     {
         return notificationIcon;
     }
 
-    public void setNotificationIcon(Bitmap notificationIcon)
+    public void setNotificationIcon(@Nullable Bitmap notificationIcon)
+    {
+        this.notificationIcon = LazyBitmap.of(notificationIcon);
+    }
+
+    public void setLazyNotificationIcon(@Nullable LazyBitmap notificationIcon)
     {
         this.notificationIcon = notificationIcon;
     }
 
+    /**
+     * Drop image sources completely. Images cannot be extracted again after that.
+     */
+    public void dropImages()
+    {
+        bigNotificationImage = null;
+        notificationIcon = null;
+    }
+
+    /**
+     * Drop extracted images. They will be extracted again if they are requested later.
+     */
+    public void releaseImages()
+    {
+        if (bigNotificationImage != null)
+            bigNotificationImage.release();
+        if (notificationIcon != null)
+            notificationIcon.release();
+    }
+
     public NativeNotificationIcon getNativeNotificationIcon()
     {
         return nativeNotificationIcon;
@@ -288,6 +328,38 @@ public class PebbleNotification implements Parcelable
         this.forcedVibrationPattern = forcedVibrationPattern;
     }
 
+    /**
+     * @return Copy of this notification. Actions are copied, images are shared with the copy.
+     */
+    public PebbleNotification copy()
+    {
+        PebbleNotification copy = new PebbleNotification(title, text, key);
+        copy.subtitle = subtitle;
+        copy.dismissable = dismissable;
+        copy.postTime = postTime;
+        if (actions != null)
+        {
+            copy.actions = new ArrayList<>(actions.size());
+            for (NotificationAction action : actions)
+                copy.actions.add(action.copy());
+        }
+        copy.noHistory = noHistory;
+        copy.forceActionMenu = forceActionMenu;
+        copy.forceSwitch = forceSwitch;
+        copy.listNotification = listNotification;
+        copy.scrollToEnd = scrollToEnd;
+        copy.hidingTextDisallowed = hidingTextDisallowed;
+        copy.wearGroupKey = wearGroupKey;
+        copy.wearGroupType = wearGroupType;
+        copy.color = color;
+        copy.bigNotificationImage = bigNotificationImage;
+        copy.notificationIcon = notificationIcon;
+        copy.nativeNotificationIcon = nativeNotificationIcon;
+        copy.forcedVibrationPattern = forcedVibrationPattern;
+
+        return copy;
+    }
+
     public boolean isInSameGroup(PebbleNotification comparing)
     {
         if (getKey().getPackage() == null || !getKey().getPackage().equals(comparing.getKey().getPackage()))
@@ -336,8 +408,8 @@ public class PebbleNotification implements Parcelable
         parcel.writeValue(wearGroupKey);
         parcel.writeInt(wearGroupType);
         parcel.writeInt(color);
-        parcel.writeValue(bigNotificationImage);
-        parcel.writeValue(notificationIcon);
+        parcel.writeValue(getBigNotificationImage());
+        parcel.writeValue(getNotificationIcon());
         parcel.writeValue(nativeNotificationIcon);
         parcel.writeValue(forcedVibrationPattern);
     }
@@ -366,8 +438,8 @@ public class PebbleNotification implements Parcelable
             notification.wearGroupKey = (String) parcel.readValue(((Object) this).getClass().getClassLoader());
             notification.wearGroupType = parcel.readInt();
             notification.color = parcel.readInt();
-            notification.bigNotificationImage = (Bitmap) parcel.readValue(getClass().getClassLoader());
-            notification.notificationIcon = (Bitmap) parcel.readValue(getClass().getClassLoader());
+            notification.bigNotificationImage = LazyBitmap.of((Bitmap) parcel.readValue(getClass().getClassLoader()));
+            notification.notificationIcon = LazyBitmap.of((Bitmap) parcel.readValue(getClass().getClassLoader()));
             notification.nativeNotificationIcon = (NativeNotificationIcon) parcel.readValue(getClass().getClassLoader());
             notification.forcedVibrationPattern = (long[]) parcel.readValue(getClass().getClassLoader());
 
@@ -8,6 +8,7 @@ import com.matejdro.pebblecommons.pebble.PebbleTalkerService;
 import com.matejdro.pebblecommons.util.LogWriter;
 import com.matejdro.pebblenotificationcenter.util.SettingsMemoryStorage;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.UUID;
 
@@ -37,11 +38,19 @@ public class PebbleNotificationCenter extends PebbleCompanionApplication
     public static final String VIBRATION_DISABLED = "noVibration";
     public static final String DISPLAY_SCROLL_SHADOW = "displayScrollShadow";
     public static final String OPEN_NC_AFTER_RECONNECT = "openAfterReconnect";
+    public static final String COALESCE_NOTIFICATION_BURSTS = "coalesceNotificationBursts";
+    public static final String INGEST_OVERFLOW_POLICY = "ingestOverflowPolicy";
+    public static final String CUSTOM_ICON_KEYWORDS = "customIconKeywords";
     public static final String SCROLL_BY_PAGE = "scrollByPage";
     public static final String DISPLAY_DISCONNECTED_NOTIFICATION = "displayDisconnectedNotification";
     public static final String PERIODIC_VIBRATION_PATTERN = "periodicVibrationPattern";
     public static final String ENABLE_GESTURES = "enableGestures";
     public static final String EXPERT_MODE = "expertMode";
+    public static final String HISTORY_MAX_NOTIFICATIONS = "historyMaxNotifications";
+    public static final String HISTORY_MAX_AGE_DAYS = "historyMaxAgeDays";
+    public static final String HISTORY_MAX_SIZE_KB = "historyMaxSizeKb";
+    public static final String SENT_NOTIFICATIONS_MEMORY_KB = "sentNotificationsMemoryKb";
+    public static final String IMAGE_DISK_CACHE = "imageDiskCache";
 
     public static final String LATITUDE = "latitude";
     public static final String LONGITUDE = "longitude";
@@ -86,7 +95,8 @@ public class PebbleNotificationCenter extends PebbleCompanionApplication
     @Override
     public Map<String, String> getTextReplacementTable()
     {
-        return settingsMemoryStorage.getReplacingStrings();
+        //Replacements are applied by TextReplacer before text reaches TextUtil
+        return Collections.emptyMap();
     }
 
     @SuppressWarnings("ConstantConditions")
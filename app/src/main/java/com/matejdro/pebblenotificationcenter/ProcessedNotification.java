@@ -2,30 +2,71 @@ package com.matejdro.pebblenotificationcenter;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-
-import java.util.ArrayList;
-import java.util.List;
+import android.support.annotation.Nullable;
 
 public class ProcessedNotification implements Parcelable
 {
 	public int id;
     public int prevId = 0;
-	public List<byte[]> textChunks = new ArrayList<>(13);
+	public byte[] textData;
     public short firstSubtitleIndex = Short.MAX_VALUE;
     public short firstTextIndex = Short.MAX_VALUE;
     public short textLength;
 
     public boolean needsIconSending = false;
-    public byte[] iconData;
+    public byte[] colorIconData;
+    public byte[] blackWhiteIconData;
     public byte[] backgroundImageData;
+    public boolean imagesRendered = false;
+    //Background image is only rendered when notification might be sent to color watch
+    public boolean imagesRenderedForColorScreen = false;
 
     public boolean vibrated = false;
-    public int nextChunkToSend = -1;
+    public int nextTextByteToSend = -1;
     public boolean nativeNotification;
 
     public PebbleNotification source;
     public boolean wasSentToWatch = false;
     public boolean waitingForConfirmation = false;
+    public boolean delivered = false;
+
+    /**
+     * @return Number of bytes of rendered watch payload that this notification currently holds.
+     */
+    public int getPayloadSize()
+    {
+        int size = 0;
+        if (textData != null)
+            size += textData.length;
+        if (colorIconData != null)
+            size += colorIconData.length;
+        if (blackWhiteIconData != null)
+            size += blackWhiteIconData.length;
+        if (backgroundImageData != null)
+            size += backgroundImageData.length;
+
+        return size;
+    }
+
+    /**
+     * Drop rendered watch payload. It is rendered again from the source if notification needs to be sent again.
+     */
+    public void shedPayload()
+    {
+        textData = null;
+        colorIconData = null;
+        blackWhiteIconData = null;
+        backgroundImageData = null;
+        imagesRendered = false;
+    }
+
+    /**
+     * @return Rendered icon for the watch with specified screen type or {@code null} if notification has no icon.
+     */
+    public @Nullable byte[] getIconData(boolean colorScreen)
+    {
+        return colorScreen ? colorIconData : blackWhiteIconData;
+    }
 
     @Override
     public int describeContents()
@@ -38,9 +79,9 @@ public class ProcessedNotification implements Parcelable
     {
         parcel.writeInt(id);
         parcel.writeInt(prevId);
-        parcel.writeValue(textChunks);
+        parcel.writeByteArray(textData);
         parcel.writeByte((byte) (vibrated ? 1 : 0));
-        parcel.writeInt(nextChunkToSend);
+        parcel.writeInt(nextTextByteToSend);
         parcel.writeByte((byte) (nativeNotification ? 1 : 0));
         parcel.writeValue(source);
     }
@@ -53,9 +94,9 @@ public class ProcessedNotification implements Parcelable
             ProcessedNotification notification = new ProcessedNotification();
             notification.id = parcel.readInt();
             notification.prevId = parcel.readInt();
-            notification.textChunks = (List<byte[]>) parcel.readValue(getClass().getClassLoader());
+            notification.textData = parcel.createByteArray();
             notification.vibrated = parcel.readByte() == 1;
-            notification.nextChunkToSend = parcel.readInt();
+            notification.nextTextByteToSend = parcel.readInt();
             notification.nativeNotification = parcel.readByte() == 1;
             notification.source = (PebbleNotification) parcel.readValue(getClass().getClassLoader());
 
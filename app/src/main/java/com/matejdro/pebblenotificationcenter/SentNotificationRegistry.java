@@ -0,0 +1,319 @@
+package com.matejdro.pebblenotificationcenter;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Notifications that were sent to the watch (or kept as if they were), indexed by NC ID.
+ *
+ * Registry also maintains secondary indexes by {@link NotificationKey}, package and wear group key,
+ * so dismiss and group lookups do not need to scan all notifications. Number and age of entries are bounded,
+ * oldest entries are evicted first.
+ *
+ * Rendered payload of delivered notifications is additionally limited by {@link PebbleNotificationCenter#SENT_NOTIFICATIONS_MEMORY_KB}.
+ * When limit is exceeded, least recently used delivered notifications lose their payload and image sources,
+ * leaving only metadata needed for dismissing, actions and wear grouping.
+ */
+public class SentNotificationRegistry
+{
+    private static final int MAX_ENTRIES = 500;
+    private static final long MAX_ENTRY_AGE = 24 * 60 * 60 * 1000;
+    private static final int DEFAULT_PAYLOAD_BUDGET_KB = 512;
+
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>();
+    private final HashMap<String, List<ProcessedNotification>> byKey = new HashMap<>();
+    private final HashMap<String, List<ProcessedNotification>> byPackage = new HashMap<>();
+    private final HashMap<String, List<ProcessedNotification>> byWearGroup = new HashMap<>();
+
+    //Delivered notifications that still hold payload, least recently used first
+    private final LinkedHashMap<Integer, Entry> payloadLru = new LinkedHashMap<>(16, 0.75f, true);
+    private long residentPayloadBytes = 0;
+
+    private int evictedEntries = 0;
+    private int evictedPayloads = 0;
+
+    public synchronized @Nullable ProcessedNotification get(int id)
+    {
+        Entry entry = entries.get(id);
+        if (entry == null)
+            return null;
+
+        //Mark as recently used
+        payloadLru.get(id);
+
+        return entry.notification;
+    }
+
+    public synchronized boolean contains(int id)
+    {
+        return entries.containsKey(id);
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized void put(ProcessedNotification notification)
+    {
+        remove(notification.id);
+
+        Entry entry = new Entry(notification, System.currentTimeMillis());
+        entries.put(notification.id, entry);
+        updatePayloadSize(entry);
+        addToIndex(byKey, getKeyIndexKey(notification.source.getKey()), notification);
+        addToIndex(byPackage, notification.source.getKey().getPackage(), notification);
+        addToIndex(byWearGroup, getWearGroupIndexKey(notification.source), notification);
+
+        evictStaleEntries();
+    }
+
+    public synchronized @Nullable ProcessedNotification remove(int id)
+    {
+        Entry entry = entries.remove(id);
+        if (entry == null)
+            return null;
+
+        removePayload(entry);
+
+        ProcessedNotification notification = entry.notification;
+        removeFromIndex(byKey, getKeyIndexKey(notification.source.getKey()), notification);
+        removeFromIndex(byPackage, notification.source.getKey().getPackage(), notification);
+        removeFromIndex(byWearGroup, getWearGroupIndexKey(notification.source), notification);
+
+        return notification;
+    }
+
+    /**
+     * @return Copy of all notifications that are {@link PebbleNotification#isSameNotification(NotificationKey) same} as the key.
+     * Returned list can be safely iterated while modifying the registry.
+     */
+    public synchronized List<ProcessedNotification> getByKey(NotificationKey key)
+    {
+        List<ProcessedNotification> candidates = byKey.get(getKeyIndexKey(key));
+        if (candidates == null)
+            return Collections.emptyList();
+
+        List<ProcessedNotification> result = new ArrayList<>(candidates.size());
+        for (ProcessedNotification notification : candidates)
+        {
+            if (notification.source.isSameNotification(key))
+                result.add(notification);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return Copy of all notifications from the package.
+     */
+    public synchronized List<ProcessedNotification> getByPackage(@Nullable String pkg)
+    {
+        return copyIndex(byPackage, pkg);
+    }
+
+    /**
+     * @return Copy of all notifications with matching wear group key (ignoring case) from any package.
+     * Notifications with wear groups disabled are never returned.
+     */
+    public synchronized List<ProcessedNotification> getByWearGroup(@Nullable String wearGroupKey)
+    {
+        if (wearGroupKey == null)
+            return Collections.emptyList();
+
+        return copyIndex(byWearGroup, wearGroupKey.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Must be called whenever payload of the registered notification was rendered, sent or dropped.
+     */
+    public synchronized void onPayloadChanged(ProcessedNotification notification)
+    {
+        Entry entry = entries.get(notification.id);
+        if (entry == null || entry.notification != notification)
+            return;
+
+        updatePayloadSize(entry);
+        enforcePayloadBudget();
+    }
+
+    public synchronized int getEvictedEntries()
+    {
+        return evictedEntries;
+    }
+
+    public synchronized int getEvictedPayloads()
+    {
+        return evictedPayloads;
+    }
+
+    /**
+     * @return Number of bytes of rendered payload currently held by all registered notifications.
+     */
+    public synchronized long getResidentPayloadBytes()
+    {
+        return residentPayloadBytes;
+    }
+
+    private void updatePayloadSize(Entry entry)
+    {
+        residentPayloadBytes -= entry.payloadSize;
+        entry.payloadSize = entry.notification.getPayloadSize();
+        residentPayloadBytes += entry.payloadSize;
+
+        //Payload of notifications that are still being sent must never be evicted
+        if (entry.notification.delivered && entry.payloadSize > 0)
+            payloadLru.put(entry.notification.id, entry);
+        else
+            payloadLru.remove(entry.notification.id);
+    }
+
+    private void removePayload(Entry entry)
+    {
+        residentPayloadBytes -= entry.payloadSize;
+        entry.payloadSize = 0;
+        payloadLru.remove(entry.notification.id);
+    }
+
+    private void enforcePayloadBudget()
+    {
+        long budget = getPayloadBudgetKb() * 1024L;
+
+        Iterator<Entry> iterator = payloadLru.values().iterator();
+        while (residentPayloadBytes > budget && iterator.hasNext())
+        {
+            Entry leastRecent = iterator.next();
+            iterator.remove();
+
+            residentPayloadBytes -= leastRecent.payloadSize;
+            leastRecent.payloadSize = 0;
+
+            leastRecent.notification.shedPayload();
+            //Only release extracted bitmaps. Images must stay re-extractable, so payload can be rendered again on demand.
+            leastRecent.notification.source.releaseImages();
+            evictedPayloads++;
+        }
+
+        Timber.d("Sent notifications hold %d bytes of payload", residentPayloadBytes);
+    }
+
+    private static int getPayloadBudgetKb()
+    {
+        try
+        {
+            return Integer.parseInt(PebbleNotificationCenter.getInMemorySettings().getSharedPreferences().getString(PebbleNotificationCenter.SENT_NOTIFICATIONS_MEMORY_KB, Integer.toString(DEFAULT_PAYLOAD_BUDGET_KB)));
+        }
+        catch (NumberFormatException e)
+        {
+            return DEFAULT_PAYLOAD_BUDGET_KB;
+        }
+    }
+
+    private void evictStaleEntries()
+    {
+        long oldestAllowed = System.currentTimeMillis() - MAX_ENTRY_AGE;
+
+        Iterator<Map.Entry<Integer, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Entry oldest = iterator.next().getValue();
+            if (entries.size() <= MAX_ENTRIES && oldest.addedAt >= oldestAllowed)
+                break;
+
+            Timber.d("Evicting stale sent notification %d", oldest.notification.id);
+
+            ProcessedNotification notification = oldest.notification;
+            iterator.remove();
+            removePayload(oldest);
+            removeFromIndex(byKey, getKeyIndexKey(notification.source.getKey()), notification);
+            removeFromIndex(byPackage, notification.source.getKey().getPackage(), notification);
+            removeFromIndex(byWearGroup, getWearGroupIndexKey(notification.source), notification);
+
+            evictedEntries++;
+        }
+    }
+
+    private static void addToIndex(HashMap<String, List<ProcessedNotification>> index, @Nullable String indexKey, ProcessedNotification notification)
+    {
+        if (indexKey == null)
+            return;
+
+        List<ProcessedNotification> bucket = index.get(indexKey);
+        if (bucket == null)
+        {
+            bucket = new ArrayList<>(2);
+            index.put(indexKey, bucket);
+        }
+
+        bucket.add(notification);
+    }
+
+    private static void removeFromIndex(HashMap<String, List<ProcessedNotification>> index, @Nullable String indexKey, ProcessedNotification notification)
+    {
+        if (indexKey == null)
+            return;
+
+        List<ProcessedNotification> bucket = index.get(indexKey);
+        if (bucket == null)
+            return;
+
+        bucket.remove(notification);
+        if (bucket.isEmpty())
+            index.remove(indexKey);
+    }
+
+    private static List<ProcessedNotification> copyIndex(HashMap<String, List<ProcessedNotification>> index, @Nullable String indexKey)
+    {
+        if (indexKey == null)
+            return Collections.emptyList();
+
+        List<ProcessedNotification> bucket = index.get(indexKey);
+        if (bucket == null)
+            return Collections.emptyList();
+
+        return new ArrayList<>(bucket);
+    }
+
+    /**
+     * Keys can only be equal when their package, ID and tag are equal, so those are used for indexing.
+     * Exact comparison is then performed on the (usually single) candidate.
+     */
+    private static @Nullable String getKeyIndexKey(NotificationKey key)
+    {
+        if (key.getPackage() == null || key.getAndroidId() == null)
+            return null;
+
+        return key.getPackage() + "|" + key.getAndroidId() + "|" + key.getTag();
+    }
+
+    private static @Nullable String getWearGroupIndexKey(PebbleNotification notification)
+    {
+        if (notification.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_DISABLED || notification.getWearGroupKey() == null)
+            return null;
+
+        return notification.getWearGroupKey().toLowerCase(Locale.US);
+    }
+
+    private static class Entry
+    {
+        private final ProcessedNotification notification;
+        private final long addedAt;
+        private int payloadSize = 0;
+
+        private Entry(ProcessedNotification notification, long addedAt)
+        {
+            this.notification = notification;
+            this.addedAt = addedAt;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.matejdro.pebblenotificationcenter;
+
+import android.content.Context;
+import android.content.Intent;
+
+import com.matejdro.pebblecommons.pebble.PebbleTalkerService;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+/**
+ * In-process channel for handing work from other components (listeners, receivers, actions) to {@link NCTalkerService}.
+ *
+ * Commands are queued in memory and service is only started once per batch. When service receives the intent,
+ * it executes every command that was queued until then on its Pebble thread.
+ */
+public class ServiceHandoff
+{
+    public static final String INTENT_DRAIN = "DrainHandoff";
+
+    private static final ConcurrentLinkedQueue<Command> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean wakeUpPending = new AtomicBoolean(false);
+
+    private static int totalDrains = 0;
+    private static int totalCommands = 0;
+
+    public static void post(Context context, Command command)
+    {
+        queue.add(command);
+
+        //Only first command since the last drain needs to wake up the service
+        if (wakeUpPending.compareAndSet(false, true))
+        {
+            Intent intent = new Intent(context, NCTalkerService.class);
+            intent.setAction(INTENT_DRAIN);
+            context.startService(intent);
+        }
+    }
+
+    /**
+     * Execute all queued commands. Must be called on the Pebble thread.
+     *
+     * @return Number of executed commands.
+     */
+    public static int drain(PebbleTalkerService service)
+    {
+        //Reset flag before polling, so commands posted during the drain either get executed here or wake service again
+        wakeUpPending.set(false);
+
+        int executed = 0;
+        Command command;
+        while ((command = queue.poll()) != null)
+        {
+            command.execute(service);
+            executed++;
+        }
+
+        totalDrains++;
+        totalCommands += executed;
+        Timber.d("Handoff drain executed %d commands (%d commands in %d drains total)", executed, totalCommands, totalDrains);
+
+        return executed;
+    }
+
+    public interface Command
+    {
+        void execute(PebbleTalkerService service);
+    }
+}
@@ -0,0 +1,114 @@
+package com.matejdro.pebblenotificationcenter.appsetting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import timber.log.Timber;
+
+/**
+ * Compiled {@link AppSetting#INCLUDED_REGEX} and {@link AppSetting#EXCLUDED_REGEX} lists of one app.
+ *
+ * Filters are compiled once per app and kept in app's {@link CachedAppSettingStorage} until its settings change,
+ * so notifications do not need to re-read and re-parse expression lists.
+ */
+public class AppRegexFilter
+{
+    private static final Pattern BACKREFERENCE_PATTERN = Pattern.compile("\\\\([1-9]|k<)");
+
+    private final Pattern[] includedPatterns;
+    private final Pattern[] excludedPatterns;
+
+    private AppRegexFilter(Pattern[] includedPatterns, Pattern[] excludedPatterns)
+    {
+        this.includedPatterns = includedPatterns;
+        this.excludedPatterns = excludedPatterns;
+    }
+
+    public boolean matchesIncluded(CharSequence text)
+    {
+        return includedPatterns.length == 0 || matchesAny(includedPatterns, text);
+    }
+
+    public boolean matchesExcluded(CharSequence text)
+    {
+        return matchesAny(excludedPatterns, text);
+    }
+
+    private static boolean matchesAny(Pattern[] patterns, CharSequence text)
+    {
+        for (Pattern pattern : patterns)
+        {
+            if (pattern.matcher(text).find())
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Filter of the app that settingStorage belongs to. Filter is cached when storage is a {@link CachedAppSettingStorage}.
+     */
+    public static AppRegexFilter get(AppSettingStorage settingStorage)
+    {
+        if (settingStorage instanceof CachedAppSettingStorage)
+            return ((CachedAppSettingStorage) settingStorage).getRegexFilter();
+
+        return compile(settingStorage.getStringList(AppSetting.INCLUDED_REGEX), settingStorage.getStringList(AppSetting.EXCLUDED_REGEX));
+    }
+
+    public static AppRegexFilter compile(List<String> includedExpressions, List<String> excludedExpressions)
+    {
+        return new AppRegexFilter(compile(includedExpressions), compile(excludedExpressions));
+    }
+
+    /**
+     * Compile list of expressions. When possible, all expressions are merged into single alternation
+     * so text is scanned only once.
+     */
+    private static Pattern[] compile(List<String> expressions)
+    {
+        List<Pattern> patterns = new ArrayList<>(expressions.size());
+        boolean mergeable = true;
+
+        for (String expression : expressions)
+        {
+            try
+            {
+                patterns.add(Pattern.compile(expression));
+            }
+            catch (PatternSyntaxException e)
+            {
+                Timber.w("Invalid filter expression: %s", expression);
+                continue;
+            }
+
+            //Group numbers shift when merging, so backreferences would point to wrong groups
+            if (BACKREFERENCE_PATTERN.matcher(expression).find())
+                mergeable = false;
+        }
+
+        if (patterns.size() < 2 || !mergeable)
+            return patterns.toArray(new Pattern[patterns.size()]);
+
+        StringBuilder merged = new StringBuilder();
+        for (Pattern pattern : patterns)
+        {
+            if (merged.length() > 0)
+                merged.append('|');
+
+            merged.append("(?:").append(pattern.pattern()).append(')');
+        }
+
+        try
+        {
+            return new Pattern[] { Pattern.compile(merged.toString()) };
+        }
+        catch (PatternSyntaxException e)
+        {
+            //Usually caused by duplicate named groups
+            return patterns.toArray(new Pattern[patterns.size()]);
+        }
+    }
+}
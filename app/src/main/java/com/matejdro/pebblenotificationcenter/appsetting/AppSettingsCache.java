@@ -0,0 +1,148 @@
+package com.matejdro.pebblenotificationcenter.appsetting;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.Nullable;
+
+import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Process-wide registry of {@link CachedAppSettingStorage} snapshots, one per app.
+ *
+ * Snapshot of an app is discarded when its preferences change. Every snapshot is discarded when default app settings change,
+ * because apps inherit them. Other global preferences that are stored alongside default app settings are ignored.
+ */
+public class AppSettingsCache
+{
+    private static final String DEFAULT_SETTINGS_KEY = "";
+    private static final String APP_CHECKED_PREFIX = "appChecked_";
+
+    private final Context context;
+    private final SharedPreferences defaultPreferences;
+    private final DefaultAppSettingsStorage defaultSettingsStorage;
+
+    private final ConcurrentHashMap<String, CachedAppSettingStorage> snapshots = new ConcurrentHashMap<>();
+
+    //Preferences only keep weak reference to the listener, so we must hold them here.
+    private final Map<String, SharedPreferences.OnSharedPreferenceChangeListener> appListeners = new HashMap<>();
+    private final SharedPreferences.OnSharedPreferenceChangeListener defaultListener = new SharedPreferences.OnSharedPreferenceChangeListener()
+    {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
+        {
+            if (isAppSettingKey(key))
+                invalidateAll();
+        }
+    };
+
+    public AppSettingsCache(Context context)
+    {
+        this.context = context.getApplicationContext();
+
+        defaultPreferences = PreferenceManager.getDefaultSharedPreferences(this.context);
+        defaultSettingsStorage = new DefaultAppSettingsStorage(defaultPreferences, defaultPreferences.edit());
+        defaultPreferences.registerOnSharedPreferenceChangeListener(defaultListener);
+    }
+
+    /**
+     * @param appPackage Package of the app or {@code null} for default settings.
+     */
+    public CachedAppSettingStorage getStorage(@Nullable String appPackage)
+    {
+        String cacheKey = appPackage == null ? DEFAULT_SETTINGS_KEY : appPackage;
+
+        CachedAppSettingStorage storage = snapshots.get(cacheKey);
+        if (storage != null)
+            return storage;
+
+        AbsAppSettingStorage source;
+        if (appPackage == null)
+        {
+            source = defaultSettingsStorage;
+        }
+        else
+        {
+            registerAppListener(appPackage);
+            source = new SharedPreferencesAppStorage(context, appPackage, defaultSettingsStorage);
+        }
+
+        storage = new CachedAppSettingStorage(this, appPackage, source);
+        CachedAppSettingStorage existing = snapshots.putIfAbsent(cacheKey, storage);
+
+        return existing == null ? storage : existing;
+    }
+
+    public void invalidate(@Nullable String appPackage)
+    {
+        CachedAppSettingStorage storage = snapshots.remove(appPackage == null ? DEFAULT_SETTINGS_KEY : appPackage);
+        if (storage != null)
+            storage.markStale();
+    }
+
+    public void invalidateAll()
+    {
+        Timber.d("Invalidating all app settings");
+
+        for (String key : snapshots.keySet())
+        {
+            CachedAppSettingStorage storage = snapshots.remove(key);
+            if (storage != null)
+                storage.markStale();
+        }
+    }
+
+    void onSettingsWritten(@Nullable String appPackage)
+    {
+        //Listeners are notified asynchronously, so discard snapshot right away to make writes visible immediately
+        if (appPackage == null)
+            invalidateAll();
+        else
+            invalidate(appPackage);
+    }
+
+    /**
+     * @return {@code true} if key belongs to app setting (including list settings that are stored under multiple keys)
+     * or to the app's enabled state.
+     */
+    private static boolean isAppSettingKey(@Nullable String key)
+    {
+        if (key == null)
+            return true;
+
+        if (key.startsWith(APP_CHECKED_PREFIX) || key.equals(PebbleNotificationCenter.APP_INCLUSION_MODE))
+            return true;
+
+        for (AppSetting setting : AppSetting.values())
+        {
+            if (key.startsWith(setting.getKey()))
+                return true;
+        }
+
+        return false;
+    }
+
+    private synchronized void registerAppListener(final String appPackage)
+    {
+        if (appListeners.containsKey(appPackage))
+            return;
+
+        SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener()
+        {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
+            {
+                invalidate(appPackage);
+            }
+        };
+
+        context.getSharedPreferences(SharedPreferencesAppStorage.getSharedPreferencesName(appPackage), Context.MODE_PRIVATE).registerOnSharedPreferenceChangeListener(listener);
+        appListeners.put(appPackage, listener);
+    }
+}
@@ -0,0 +1,271 @@
+package com.matejdro.pebblenotificationcenter.appsetting;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory snapshot of settings of one app, created by {@link AppSettingsCache}.
+ *
+ * Every value is read from underlying storage only once and then kept until app's settings change.
+ * When that happens, snapshot is marked stale and all reads are redirected to the fresh snapshot,
+ * so objects that hold on to the storage (such as notifications) never see outdated values.
+ * Writes go straight to the underlying storage.
+ */
+public class CachedAppSettingStorage extends AbsAppSettingStorage
+{
+    private static final Object NULL_VALUE = new Object();
+
+    private final AppSettingsCache cache;
+    private final @Nullable String appPackage;
+    private final AbsAppSettingStorage source;
+
+    private final ConcurrentHashMap<AppSetting, Object> strings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<AppSetting, Boolean> booleans = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<AppSetting, Integer> ints = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<AppSetting, List<String>> stringLists = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> stringsByKey = new ConcurrentHashMap<>();
+
+    private volatile Boolean appChecked;
+    private volatile Boolean canSendNotifications;
+    private volatile AppRegexFilter regexFilter;
+
+    private volatile boolean stale = false;
+
+    CachedAppSettingStorage(AppSettingsCache cache, @Nullable String appPackage, AbsAppSettingStorage source)
+    {
+        this.cache = cache;
+        this.appPackage = appPackage;
+        this.source = source;
+    }
+
+    void markStale()
+    {
+        stale = true;
+    }
+
+    /**
+     * @return {@code true} if settings changed since this snapshot was created.
+     */
+    public boolean isStale()
+    {
+        return stale;
+    }
+
+    private @Nullable CachedAppSettingStorage getFreshSnapshot()
+    {
+        if (!stale)
+            return null;
+
+        return cache.getStorage(appPackage);
+    }
+
+    @Nullable
+    @Override
+    public String getStringByKey(String key)
+    {
+        CachedAppSettingStorage fresh = getFreshSnapshot();
+        if (fresh != null)
+            return fresh.getStringByKey(key);
+
+        Object value = stringsByKey.get(key);
+        if (value == null)
+        {
+            value = source.getStringByKey(key);
+            if (value == null)
+                value = NULL_VALUE;
+
+            stringsByKey.put(key, value);
+        }
+
+        return value == NULL_VALUE ? null : (String) value;
+    }
+
+    @Override
+    public String getString(AppSetting setting)
+    {
+        CachedAppSettingStorage fresh = getFreshSnapshot();
+        if (fresh != null)
+            return fresh.getString(setting);
+
+        Object value = strings.get(setting);
+        if (value == null)
+        {
+            value = source.getString(setting);
+            if (value == null)
+                value = NULL_VALUE;
+
+            strings.put(setting, value);
+        }
+
+        return value == NULL_VALUE ? null : (String) value;
+    }
+
+    @Override
+    public boolean getBoolean(AppSetting setting)
+    {
+        CachedAppSettingStorage fresh = getFreshSnapshot();
+        if (fresh != null)
+            return fresh.getBoolean(setting);
+
+        Boolean value = booleans.get(setting);
+        if (value == null)
+        {
+            value = source.getBoolean(setting);
+            booleans.put(setting, value);
+        }
+
+        return value;
+    }
+
+    @Override
+    public int getInt(AppSetting setting)
+    {
+        CachedAppSettingStorage fresh = getFreshSnapshot();
+        if (fresh != null)
+            return fresh.getInt(setting);
+
+        Integer value = ints.get(setting);
+        if (value == null)
+        {
+            value = source.getInt(setting);
+            ints.put(setting, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * @return Copy of the cached list that caller is free to modify.
+     */
+    @Override
+    public List<String> getStringList(AppSetting setting)
+    {
+        CachedAppSettingStorage fresh = getFreshSnapshot();
+        if (fresh != null)
+            return fresh.getStringList(setting);
+
+        List<String> value = stringLists.get(setting);
+        if (value == null)
+        {
+            value = source.getStringList(setting);
+            stringLists.put(setting, value);
+        }
+
+        return new ArrayList<>(value);
+    }
+
+    @Override
+    public boolean isAppChecked()
+    {
+        CachedAppSettingStorage fresh = getFreshSnapshot();
+        if (fresh != null)
+            return fresh.isAppChecked();
+
+        Boolean value = appChecked;
+        if (value == null)
+        {
+            value = source.isAppChecked();
+            appChecked = value;
+        }
+
+        return value;
+    }
+
+    @Override
+    public boolean canAppSendNotifications()
+    {
+        CachedAppSettingStorage fresh = getFreshSnapshot();
+        if (fresh != null)
+            return fresh.canAppSendNotifications();
+
+        Boolean value = canSendNotifications;
+        if (value == null)
+        {
+            value = source.canAppSendNotifications();
+            canSendNotifications = value;
+        }
+
+        return value;
+    }
+
+    public AppRegexFilter getRegexFilter()
+    {
+        CachedAppSettingStorage fresh = getFreshSnapshot();
+        if (fresh != null)
+            return fresh.getRegexFilter();
+
+        AppRegexFilter value = regexFilter;
+        if (value == null)
+        {
+            value = AppRegexFilter.compile(getStringList(AppSetting.INCLUDED_REGEX), getStringList(AppSetting.EXCLUDED_REGEX));
+            regexFilter = value;
+        }
+
+        return value;
+    }
+
+    @Override
+    public void setStringByKey(String key, String value)
+    {
+        source.setStringByKey(key, value);
+        cache.onSettingsWritten(appPackage);
+    }
+
+    @Override
+    public void setString(AppSetting setting, String val)
+    {
+        source.setString(setting, val);
+        cache.onSettingsWritten(appPackage);
+    }
+
+    @Override
+    public void setBoolean(AppSetting setting, boolean val)
+    {
+        source.setBoolean(setting, val);
+        cache.onSettingsWritten(appPackage);
+    }
+
+    @Override
+    public void setInt(AppSetting setting, int val)
+    {
+        source.setInt(setting, val);
+        cache.onSettingsWritten(appPackage);
+    }
+
+    @Override
+    public void setStringList(AppSetting setting, Collection<String> val)
+    {
+        source.setStringList(setting, val);
+        cache.onSettingsWritten(appPackage);
+    }
+
+    @Override
+    public void setEnum(AppSetting setting, Enum<?> val)
+    {
+        source.setEnum(setting, val);
+        cache.onSettingsWritten(appPackage);
+    }
+
+    @Override
+    public void deleteSetting(AppSetting setting)
+    {
+        source.deleteSetting(setting);
+        cache.onSettingsWritten(appPackage);
+    }
+
+    @Override
+    public void setAppChecked(boolean checked)
+    {
+        source.setAppChecked(checked);
+        cache.onSettingsWritten(appPackage);
+    }
+
+    public @Nullable String getAppPackage()
+    {
+        return appPackage;
+    }
+}
@@ -1,72 +1,221 @@
 package com.matejdro.pebblenotificationcenter.lists;
 
 import android.content.Context;
-import android.content.Intent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
 import com.matejdro.pebblenotificationcenter.NotificationHistoryStorage;
 import com.matejdro.pebblenotificationcenter.NotificationKey;
 import com.matejdro.pebblenotificationcenter.PebbleNotification;
 import com.matejdro.pebblenotificationcenter.pebble.modules.ListModule;
-import com.matejdro.pebblenotificationcenter.pebble.modules.NotificationSendingModule;
+
 import java.util.ArrayList;
 import java.util.List;
 
-import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import needle.Needle;
 
+/**
+ * History list that only keeps few pages of rows around the requested index in memory.
+ *
+ * Pages are loaded from database when list item is requested, next page in the scrolling direction is prefetched in background.
+ * Icons are decoded only when their notification is requested.
+ */
 public class NotificationHistoryAdapter implements NotificationListAdapter {
-	private List<PebbleNotification> notifications;
+	private static final int MAX_NOTIFICATIONS = 150;
+	private static final int PAGE_SIZE = 10;
+	private static final int MAX_CACHED_PAGES = 3;
+	private static final int MAX_CACHED_ICONS = 16;
+	private static final int PREFETCH_DISTANCE = 3;
+
 	private NotificationHistoryStorage storage;
 	private Context context;
 
+	private final LruCache<Integer, List<HistoryEntry>> pages = new LruCache<>(MAX_CACHED_PAGES);
+	private final LruCache<String, Bitmap> icons = new LruCache<>(MAX_CACHED_ICONS);
+
+	//List only displays notifications that were stored before it was loaded, so pages do not shift while browsing
+	private volatile long maxRowId;
+	private volatile int numOfNotifications;
+	private int lastRequestedIndex = -1;
+
 	public NotificationHistoryAdapter(Context context, NotificationHistoryStorage storage) {
 		this.storage = storage;
 		this.context = context;
-		
+
 		loadNotifications(context);
 	}
-	
+
 	public void loadNotifications(Context context)
 	{
-		Cursor cursor = storage.getReadableDatabase().rawQuery("SELECT PostTime, Title, Subtitle, Text, Icon FROM notifications ORDER BY PostTime DESC LIMIT 150", null);
-		notifications = new ArrayList<PebbleNotification>(cursor.getCount());
-		
-		while (cursor.moveToNext())
+		//Make sure that notifications still waiting in write queue are listed too
+		storage.flush();
+
+		synchronized (this)
 		{
-            long sendingDate = cursor.getLong(0);
-            String title = cursor.getString(1);
-            String text = cursor.getString(3) + "\n\nSent on " + ListModule.getFormattedDate(context, sendingDate);
-            NotificationKey key = new NotificationKey(null, null, null);
-			byte[] iconData = cursor.getBlob(4);
-			Bitmap icon = null;
-			if (iconData != null)
-				icon = BitmapFactory.decodeByteArray(iconData, 0, iconData.length);
-
-            PebbleNotification notification = new PebbleNotification(title, text, key);
-			notification.setSubtitle(cursor.getString(2));
-			notification.setPostTime(sendingDate);
-            notification.setListNotification(true);
-			notification.setDismissable(true);
-			notification.setNotificationIcon(icon);
-
-			notifications.add(notification);
-		}
+			pages.evictAll();
+			lastRequestedIndex = -1;
 
-		cursor.close();
+			Cursor cursor = storage.getReadableDatabase().rawQuery("SELECT COUNT(*), MAX(rowid) FROM notifications", null);
+			if (cursor.moveToNext())
+			{
+				numOfNotifications = Math.min(cursor.getInt(0), MAX_NOTIFICATIONS);
+				maxRowId = cursor.getLong(1);
+			}
+			else
+			{
+				numOfNotifications = 0;
+				maxRowId = 0;
+			}
+
+			cursor.close();
+		}
 	}
 
 	@Override
 	public PebbleNotification getNotificationAt(int index) {
-		return notifications.get(index);
+		HistoryEntry entry = getEntry(index);
+		prefetch(index);
+
+		NotificationKey key = new NotificationKey(null, null, null);
+		if (entry == null)
+		{
+			//Entry was deleted by cleanup while list was open
+			PebbleNotification notification = new PebbleNotification("", "", key);
+			notification.setListNotification(true);
+			return notification;
+		}
+
+		String text = entry.text + "\n\nSent on " + ListModule.getFormattedDate(context, entry.postTime);
+
+		PebbleNotification notification = new PebbleNotification(entry.title, text, key);
+		notification.setSubtitle(entry.subtitle);
+		notification.setPostTime(entry.postTime);
+		notification.setListNotification(true);
+		notification.setDismissable(true);
+		notification.setNotificationIcon(getIcon(entry.iconHash));
+
+		return notification;
 	}
 
 	@Override
 	public int getNumOfNotifications() {
-		return notifications.size();
+		return numOfNotifications;
 	}
 
 	@Override
 	public void forceRefresh() {
 		loadNotifications(context);
 	}
+
+	private HistoryEntry getEntry(int index)
+	{
+		if (index < 0 || index >= numOfNotifications)
+			return null;
+
+		List<HistoryEntry> page = getPage(index / PAGE_SIZE);
+
+		int indexInPage = index % PAGE_SIZE;
+		if (indexInPage >= page.size())
+			return null;
+
+		return page.get(indexInPage);
+	}
+
+	private synchronized List<HistoryEntry> getPage(int pageIndex)
+	{
+		List<HistoryEntry> page = pages.get(pageIndex);
+		if (page != null)
+			return page;
+
+		page = new ArrayList<>(PAGE_SIZE);
+
+		int offset = pageIndex * PAGE_SIZE;
+		int limit = Math.min(PAGE_SIZE, MAX_NOTIFICATIONS - offset);
+
+		Cursor cursor = storage.getReadableDatabase().rawQuery("SELECT PostTime, Title, Subtitle, Text, IconHash FROM notifications WHERE rowid <= ? ORDER BY PostTime DESC, rowid DESC LIMIT ? OFFSET ?",
+				new String[] { Long.toString(maxRowId), Integer.toString(limit), Integer.toString(offset) });
+		while (cursor.moveToNext())
+		{
+			page.add(new HistoryEntry(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getString(3), cursor.getString(4)));
+		}
+		cursor.close();
+
+		pages.put(pageIndex, page);
+		return page;
+	}
+
+	/**
+	 * Load page that the user will likely need next in the background.
+	 */
+	private void prefetch(int requestedIndex)
+	{
+		int direction;
+		synchronized (this)
+		{
+			direction = requestedIndex >= lastRequestedIndex ? 1 : -1;
+			lastRequestedIndex = requestedIndex;
+		}
+
+		int prefetchIndex = requestedIndex + direction * PREFETCH_DISTANCE;
+		if (prefetchIndex < 0 || prefetchIndex >= numOfNotifications)
+			return;
+
+		final int prefetchPage = prefetchIndex / PAGE_SIZE;
+		if (pages.get(prefetchPage) != null)
+			return;
+
+		Needle.onBackgroundThread().withTaskType("historyPrefetch").serially().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				getPage(prefetchPage);
+			}
+		});
+	}
+
+	private Bitmap getIcon(String iconHash)
+	{
+		if (iconHash == null)
+			return null;
+
+		Bitmap icon = icons.get(iconHash);
+		if (icon != null)
+			return icon;
+
+		SQLiteDatabase database = storage.getReadableDatabase();
+		Cursor cursor = database.rawQuery("SELECT Data FROM icons WHERE Hash = ?", new String[] { iconHash });
+		if (cursor.moveToNext())
+		{
+			byte[] iconData = cursor.getBlob(0);
+			icon = BitmapFactory.decodeByteArray(iconData, 0, iconData.length);
+		}
+		cursor.close();
+
+		if (icon != null)
+			icons.put(iconHash, icon);
+
+		return icon;
+	}
+
+	private static class HistoryEntry
+	{
+		private final long postTime;
+		private final String title;
+		private final String subtitle;
+		private final String text;
+		private final String iconHash;
+
+		private HistoryEntry(long postTime, String title, String subtitle, String text, String iconHash)
+		{
+			this.postTime = postTime;
+			this.title = title;
+			this.subtitle = subtitle;
+			this.text = text;
+			this.iconHash = iconHash;
+		}
+	}
 }
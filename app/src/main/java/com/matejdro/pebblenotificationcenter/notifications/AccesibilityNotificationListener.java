@@ -14,6 +14,7 @@ public class AccesibilityNotificationListener extends AccessibilityService {
 	public void onCreate() {
 		instance = this;
 		NotificationHandler.active = true;
+		ReflectionCache.warmUp();
 		
 		super.onCreate();
 	}
@@ -34,7 +35,7 @@ public class AccesibilityNotificationListener extends AccessibilityService {
 		Notification notification = (Notification) parcelable;
 
         Timber.d("Got new accessibility notification");
-        NotificationHandler.newNotification(this, new NotificationKey(event.getPackageName().toString(), null, null), notification, false);
+        NotificationIngestQueue.getInstance(this).post(new NotificationKey(event.getPackageName().toString(), null, null), notification, false);
 	}
 
 	@Override
@@ -0,0 +1,232 @@
+package com.matejdro.pebblenotificationcenter.notifications;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.service.notification.StatusBarNotification;
+
+import com.matejdro.pebblenotificationcenter.PebbleNotification;
+import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
+import com.matejdro.pebblenotificationcenter.appsetting.AppSettingStorage;
+import com.matejdro.pebblenotificationcenter.appsetting.CachedAppSettingStorage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import timber.log.Timber;
+
+/**
+ * Sorted index of notifications that are currently displayed on the phone.
+ *
+ * Index is kept up to date with posted and removed notifications, so it does not need to query system on every list open.
+ * Every version of the notification is only converted into {@link PebbleNotification} once, when list first needs it.
+ * Conversion is repeated when app's settings change.
+ *
+ * Index is only built after it is first used, until then posted and removed notifications are ignored.
+ */
+@TargetApi(value = Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class ActiveNotificationIndex
+{
+    private static ActiveNotificationIndex instance;
+
+    private final Context context;
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> sortedEntries = new TreeSet<>(new EntryComparator());
+    private boolean built = false;
+    private long nextVersion = 0;
+
+    private int conversions = 0;
+    private int reusedConversions = 0;
+
+    public static synchronized ActiveNotificationIndex getInstance(Context context)
+    {
+        if (instance == null)
+            instance = new ActiveNotificationIndex(context.getApplicationContext());
+
+        return instance;
+    }
+
+    private ActiveNotificationIndex(Context context)
+    {
+        this.context = context;
+    }
+
+    public synchronized void onNotificationPosted(StatusBarNotification sbn)
+    {
+        if (!built)
+            return;
+
+        put(sbn);
+    }
+
+    public synchronized void onNotificationRemoved(StatusBarNotification sbn)
+    {
+        if (!built)
+            return;
+
+        Entry entry = entries.remove(getIndexKey(sbn));
+        if (entry != null)
+            sortedEntries.remove(entry);
+    }
+
+    /**
+     * Forget all notifications. Index will be built again from system's notifications when it is next used.
+     */
+    public synchronized void reset()
+    {
+        entries.clear();
+        sortedEntries.clear();
+        built = false;
+    }
+
+    /**
+     * @return Copies of all active notifications, sorted for the list. Caller may freely modify them.
+     */
+    public List<PebbleNotification> getSnapshot()
+    {
+        List<Entry> snapshotEntries;
+        synchronized (this)
+        {
+            if (!built)
+                build();
+
+            snapshotEntries = new ArrayList<>(sortedEntries);
+        }
+
+        //Conversion happens outside the lock, so listener is never blocked by it
+        List<PebbleNotification> notifications = new ArrayList<>(snapshotEntries.size());
+        int converted = 0;
+        for (Entry entry : snapshotEntries)
+        {
+            PebbleNotification notification;
+            if (entry.isConversionValid())
+            {
+                notification = entry.getConverted();
+            }
+            else
+            {
+                notification = entry.convert(context);
+                converted++;
+            }
+
+            if (notification != null)
+                notifications.add(notification.copy());
+        }
+
+        synchronized (this)
+        {
+            conversions += converted;
+            reusedConversions += snapshotEntries.size() - converted;
+        }
+
+        Timber.d("Active notification snapshot: %d notifications, %d converted (%d conversions, %d reused total)", notifications.size(), converted, conversions, reusedConversions);
+        return notifications;
+    }
+
+    private void build()
+    {
+        entries.clear();
+        sortedEntries.clear();
+
+        StatusBarNotification[] sbns = JellybeanNotificationListener.getCurrentNotifications();
+        if (sbns == null)
+            return;
+
+        for (StatusBarNotification sbn : sbns)
+            put(sbn);
+
+        //Index can only follow system while listener is running
+        built = JellybeanNotificationListener.instance != null;
+    }
+
+    private void put(StatusBarNotification sbn)
+    {
+        Entry entry = new Entry(sbn, nextVersion++);
+
+        Entry previous = entries.put(getIndexKey(sbn), entry);
+        if (previous != null)
+            sortedEntries.remove(previous);
+
+        sortedEntries.add(entry);
+    }
+
+    private static String getIndexKey(StatusBarNotification sbn)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            return sbn.getKey();
+        else
+            return sbn.getPackageName() + "|" + sbn.getId() + "|" + sbn.getTag();
+    }
+
+    private static class Entry
+    {
+        private final StatusBarNotification sbn;
+        private final long version;
+
+        private boolean converted = false;
+        private PebbleNotification notification;
+        private AppSettingStorage convertedWithSettings;
+
+        private Entry(StatusBarNotification sbn, long version)
+        {
+            this.sbn = sbn;
+            this.version = version;
+        }
+
+        /**
+         * @return Result of the last conversion, {@code null} if notification was filtered out.
+         */
+        private synchronized PebbleNotification getConverted()
+        {
+            return notification;
+        }
+
+        private synchronized boolean isConversionValid()
+        {
+            if (!converted)
+                return false;
+
+            //Conversion depends on app's settings
+            return !(convertedWithSettings instanceof CachedAppSettingStorage) || !((CachedAppSettingStorage) convertedWithSettings).isStale();
+        }
+
+        private synchronized PebbleNotification convert(Context context)
+        {
+            convertedWithSettings = PebbleNotificationCenter.getInMemorySettings().getAppSettingStorage(sbn.getPackageName());
+
+            notification = NotificationHandler.getPebbleNotificationFromAndroidNotification(context, NotificationHandler.getKeyFromSbn(sbn), sbn.getNotification(), sbn.isClearable());
+            if (notification != null)
+            {
+                notification.setListNotification(true);
+                notification.setPostTime(sbn.getPostTime());
+            }
+
+            converted = true;
+            return notification;
+        }
+    }
+
+    private static class EntryComparator implements Comparator<Entry>
+    {
+        @Override
+        public int compare(Entry lhs, Entry rhs)
+        {
+            //First sort by normal/ongoing, then by date.
+
+            if (lhs.sbn.isClearable() != rhs.sbn.isClearable())
+                return lhs.sbn.isClearable() ? -1 : 1;
+
+            if (lhs.sbn.getPostTime() != rhs.sbn.getPostTime())
+                return lhs.sbn.getPostTime() > rhs.sbn.getPostTime() ? -1 : 1;
+
+            if (lhs.version != rhs.version)
+                return lhs.version > rhs.version ? -1 : 1;
+
+            return 0;
+        }
+    }
+}
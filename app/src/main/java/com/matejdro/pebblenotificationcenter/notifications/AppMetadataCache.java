@@ -0,0 +1,217 @@
+package com.matejdro.pebblenotificationcenter.notifications;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.Nullable;
+import android.support.v7.graphics.Palette;
+import android.support.v7.graphics.Target;
+
+import com.matejdro.pebblecommons.util.BitmapUtils;
+import com.matejdro.pebblenotificationcenter.pebble.NativeNotificationIcon;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Per-package cache of app metadata that is expensive to obtain (label from PackageManager and color extracted from app icon).
+ *
+ * Entries are also persisted, so they survive restarts. Persisted entry is only used if app was not updated since it was created.
+ * Entries are discarded when app is changed, replaced or removed and when system language changes.
+ */
+public class AppMetadataCache
+{
+    private static final String PREFERENCES_NAME = "appMetadataCache";
+    private static final String DEFAULT_LABEL = "Notification";
+
+    private static AppMetadataCache instance;
+
+    private final Context context;
+    private final SharedPreferences persistentStorage;
+    private final ConcurrentHashMap<String, AppMetadata> cache = new ConcurrentHashMap<>();
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction()))
+            {
+                invalidateAll();
+                return;
+            }
+
+            if (intent.getData() == null)
+                return;
+
+            invalidate(intent.getData().getSchemeSpecificPart());
+        }
+    };
+
+    public static synchronized AppMetadataCache getInstance(Context context)
+    {
+        if (instance == null)
+            instance = new AppMetadataCache(context.getApplicationContext());
+
+        return instance;
+    }
+
+    private AppMetadataCache(Context context)
+    {
+        this.context = context;
+        persistentStorage = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(packageReceiver, packageFilter);
+
+        context.registerReceiver(packageReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+
+    public AppMetadata get(@Nullable String appPackage)
+    {
+        if (appPackage == null)
+            return new AppMetadata(DEFAULT_LABEL, Color.TRANSPARENT, NativeNotificationIcon.NOTIFICATION_GENERIC);
+
+        AppMetadata metadata = cache.get(appPackage);
+        if (metadata != null)
+            return metadata;
+
+        PackageManager packageManager = context.getPackageManager();
+        PackageInfo packageInfo;
+        try
+        {
+            packageInfo = packageManager.getPackageInfo(appPackage, 0);
+        }
+        catch (PackageManager.NameNotFoundException e)
+        {
+            packageInfo = null;
+        }
+
+        if (packageInfo != null)
+            metadata = loadPersisted(appPackage, packageInfo.lastUpdateTime);
+
+        if (metadata == null)
+        {
+            metadata = createMetadata(appPackage, packageInfo);
+            if (packageInfo != null)
+                persist(appPackage, packageInfo.lastUpdateTime, metadata);
+        }
+
+        cache.put(appPackage, metadata);
+        return metadata;
+    }
+
+    public void invalidate(String appPackage)
+    {
+        Timber.d("Invalidating metadata of %s", appPackage);
+
+        cache.remove(appPackage);
+        persistentStorage.edit().remove(appPackage).apply();
+    }
+
+    public void invalidateAll()
+    {
+        cache.clear();
+        persistentStorage.edit().clear().apply();
+    }
+
+    private AppMetadata createMetadata(String appPackage, @Nullable PackageInfo packageInfo)
+    {
+        PackageManager packageManager = context.getPackageManager();
+
+        ApplicationInfo applicationInfo = packageInfo == null ? null : packageInfo.applicationInfo;
+        String label = applicationInfo != null ? packageManager.getApplicationLabel(applicationInfo).toString() : DEFAULT_LABEL;
+
+        int iconColor = Color.TRANSPARENT;
+        if (applicationInfo != null)
+        {
+            Drawable appIcon = packageManager.getApplicationIcon(applicationInfo);
+            Bitmap iconBitmap = BitmapUtils.getBitmap(appIcon);
+            if (iconBitmap != null)
+            {
+                Palette palette = Palette.from(iconBitmap).addTarget(Target.VIBRANT).generate();
+                iconColor = palette.getColorForTarget(Target.VIBRANT, Color.TRANSPARENT);
+            }
+        }
+
+        NativeNotificationIcon nativeIcon = NativeNotificationIcon.getIconForApplication(appPackage, label);
+
+        return new AppMetadata(label, iconColor, nativeIcon);
+    }
+
+    private @Nullable AppMetadata loadPersisted(String appPackage, long lastUpdateTime)
+    {
+        String serialized = persistentStorage.getString(appPackage, null);
+        if (serialized == null)
+            return null;
+
+        //Format: lastUpdateTime, icon color, native icon name and label, separated by newlines (label is last because it may contain them)
+        String[] parts = serialized.split("\n", 4);
+        if (parts.length < 4)
+            return null;
+
+        try
+        {
+            if (Long.parseLong(parts[0]) != lastUpdateTime)
+                return null;
+
+            return new AppMetadata(parts[3], Integer.parseInt(parts[1]), NativeNotificationIcon.valueOf(parts[2]));
+        }
+        catch (IllegalArgumentException e)
+        {
+            //Corrupted entry or icon that does not exist anymore. Just re-create it.
+            return null;
+        }
+    }
+
+    private void persist(String appPackage, long lastUpdateTime, AppMetadata metadata)
+    {
+        String serialized = lastUpdateTime + "\n" + metadata.iconColor + "\n" + metadata.nativeIcon.name() + "\n" + metadata.label;
+        persistentStorage.edit().putString(appPackage, serialized).apply();
+    }
+
+    public static class AppMetadata
+    {
+        private final String label;
+        private final int iconColor;
+        private final NativeNotificationIcon nativeIcon;
+
+        public AppMetadata(String label, int iconColor, NativeNotificationIcon nativeIcon)
+        {
+            this.label = label;
+            this.iconColor = iconColor;
+            this.nativeIcon = nativeIcon;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+
+        /**
+         * @return Vibrant color of the app icon or {@link Color#TRANSPARENT} if it could not be determined.
+         */
+        public int getIconColor()
+        {
+            return iconColor;
+        }
+
+        public NativeNotificationIcon getNativeIcon()
+        {
+            return nativeIcon;
+        }
+    }
+}
@@ -6,7 +6,6 @@ import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 
 import com.matejdro.pebblenotificationcenter.NotificationKey;
-import com.matejdro.pebblenotificationcenter.pebble.modules.DismissUpwardsModule;
 
 import timber.log.Timber;
 
@@ -21,6 +20,7 @@ public class JellybeanNotificationListener extends NotificationListenerService {
         Timber.d("Notification Listener stopped...");
 
         instance = null;
+        ActiveNotificationIndex.getInstance(this).reset();
 	}
 
 	@Override
@@ -30,6 +30,7 @@ public class JellybeanNotificationListener extends NotificationListenerService {
 		instance = this;
 
 		NotificationHandler.active = true;
+		ReflectionCache.warmUp();
 
         Timber.d("Finished creating Notification Listener...");
 
@@ -41,7 +42,8 @@ public class JellybeanNotificationListener extends NotificationListenerService {
 	@Override
 	public void onNotificationPosted(final StatusBarNotification sbn) {
         Timber.d("Got new jellybean notification");
-        NotificationHandler.newNotification(JellybeanNotificationListener.this, NotificationHandler.getKeyFromSbn(sbn), sbn.getNotification(), true);
+        ActiveNotificationIndex.getInstance(this).onNotificationPosted(sbn);
+        NotificationIngestQueue.getInstance(this).post(NotificationHandler.getKeyFromSbn(sbn), sbn.getNotification(), true);
 	}
 
 	@Override
@@ -50,7 +52,8 @@ public class JellybeanNotificationListener extends NotificationListenerService {
         Timber.d("Got jellybean dismiss %s", key);
 
 
-        DismissUpwardsModule.dismissNotification(this, key);
+        ActiveNotificationIndex.getInstance(this).onNotificationRemoved(sbn);
+        NotificationIngestQueue.getInstance(this).dismiss(key);
 	}
 
     @TargetApi(value = Build.VERSION_CODES.LOLLIPOP)
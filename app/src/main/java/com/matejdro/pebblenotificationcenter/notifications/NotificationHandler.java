@@ -4,13 +4,10 @@ import android.annotation.TargetApi;
 import android.app.Notification;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Icon;
 import android.os.Build;
@@ -19,19 +16,16 @@ import android.os.Parcelable;
 import android.service.notification.StatusBarNotification;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
-import android.support.v7.graphics.Palette;
-import android.support.v7.graphics.Target;
 
 import com.matejdro.pebblecommons.notification.NotificationCenterExtender;
 import com.matejdro.pebblecommons.util.BitmapUtils;
+import com.matejdro.pebblenotificationcenter.LazyBitmap;
 import com.matejdro.pebblenotificationcenter.NotificationKey;
 import com.matejdro.pebblenotificationcenter.PebbleNotification;
 import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSetting;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSettingStorage;
-import com.matejdro.pebblenotificationcenter.appsetting.SharedPreferencesAppStorage;
 import com.matejdro.pebblenotificationcenter.notifications.actions.ActionParser;
-import com.matejdro.pebblenotificationcenter.pebble.NativeNotificationIcon;
 import com.matejdro.pebblenotificationcenter.pebble.modules.NotificationSendingModule;
 import com.matejdro.pebblenotificationcenter.util.SettingsMemoryStorage;
 
@@ -45,7 +39,7 @@ public class NotificationHandler {
 		Timber.i("Processing notification %s", key);
 
 		SettingsMemoryStorage settings = PebbleNotificationCenter.getInMemorySettings();
-        AppSettingStorage settingStorage = new SharedPreferencesAppStorage(context, key.getPackage(), settings.getDefaultSettingsStorage());
+        AppSettingStorage settingStorage = settings.getAppSettingStorage(key.getPackage());
 
 		boolean enableOngoing = settingStorage.getBoolean(AppSetting.SEND_ONGOING_NOTIFICATIONS);
 		boolean isOngoing = (notification.flags & Notification.FLAG_ONGOING_EVENT) != 0;
@@ -86,7 +80,7 @@ public class NotificationHandler {
         NotificationSendingModule.notify(pebbleNotification, context);
     }
 
-    public static @Nullable PebbleNotification getPebbleNotificationFromAndroidNotification(Context context, NotificationKey key, Notification notification, boolean isDismissible)
+    public static @Nullable PebbleNotification getPebbleNotificationFromAndroidNotification(Context context, final NotificationKey key, final Notification notification, boolean isDismissible)
     {
         NotificationCenterExtender notificationCenterExtender = new NotificationCenterExtender(notification);
         if (notificationCenterExtender.isNCNotificationDisabled())
@@ -95,7 +89,8 @@ public class NotificationHandler {
             return null;
         }
 
-        final String title = getAppName(context, key.getPackage());
+        AppMetadataCache.AppMetadata appMetadata = AppMetadataCache.getInstance(context).get(key.getPackage());
+        final String title = appMetadata.getLabel();
 
         PebbleNotification pebbleNotification = new PebbleNotification(title, null, key);
         AppSettingStorage settingStorage = pebbleNotification.getSettingStorage(context);
@@ -115,16 +110,34 @@ public class NotificationHandler {
         pebbleNotification.setColor(getColor(notification, key.getPackage(), context));
 
         if (key.getPackage() != null)
-            pebbleNotification.setNativeNotificationIcon(NativeNotificationIcon.getIconForApplication(key.getPackage(), title));
+            pebbleNotification.setNativeNotificationIcon(appMetadata.getNativeIcon());
 
+        //Images are only extracted when they are about to be sent or stored
+        final Context appContext = context.getApplicationContext();
         if (settingStorage.getBoolean(AppSetting.SHOW_IMAGE))
-            pebbleNotification.setBigNotificationImage(getImage(context, notification));
+        {
+            Bundle extras = NotificationTextParser.getExtras(notification);
+            if (extras != null)
+                pebbleNotification.setLazyBigNotificationImage(new ExtrasImage(appContext, extras));
+        }
 
         if (settingStorage.getBoolean(AppSetting.USE_PROVIDED_VIBRATION))
             pebbleNotification.setForcedVibrationPattern(notification.vibrate);
 
         if (settingStorage.getBoolean(AppSetting.WATCHAPP_NOTIFICATION_ICON))
-            pebbleNotification.setNotificationIcon(getNotificationIcon(key.getPackage(), notification, context));
+        {
+            //Only icon reference is kept, so cached notification does not hold whole android notification
+            final Object smallIcon = getSmallIconReference(notification);
+            final String packageName = key.getPackage();
+            pebbleNotification.setLazyNotificationIcon(new LazyBitmap()
+            {
+                @Override
+                protected Bitmap load()
+                {
+                    return loadSmallIcon(packageName, smallIcon, appContext);
+                }
+            });
+        }
 
         ActionParser.loadActions(notification, pebbleNotification, context);
 
@@ -209,26 +222,18 @@ public class NotificationHandler {
             }
         }
 
-        //Try getting color from notification icon color
-        try {
-            Drawable appIcon = context.getPackageManager().getApplicationIcon(appPackage);
-            Bitmap iconBitmap = BitmapUtils.getBitmap(appIcon);
-            if (iconBitmap != null)
-            {
-                Palette palette = Palette.from(iconBitmap).addTarget(Target.VIBRANT).generate();
-                return palette.getColorForTarget(Target.VIBRANT, Color.TRANSPARENT);
-            }
-        } catch (NameNotFoundException ignored) {
-        }
-
-
-        return Color.TRANSPARENT;
+        //Fallback to color of the app icon
+        return AppMetadataCache.getInstance(context).get(appPackage).getIconColor();
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
     public static Bitmap getImage(Context context, Notification notification)
     {
-        Bundle extras = NotificationTextParser.getExtras(notification);
+        return getImage(context, NotificationTextParser.getExtras(notification));
+    }
+
+    public static Bitmap getImage(Context context, @Nullable Bundle extras)
+    {
         if (extras != null)
         {
             //Extract image from BigPictureStyle notification style
@@ -271,23 +276,43 @@ public class NotificationHandler {
     @SuppressWarnings("deprecation")
     @TargetApi(Build.VERSION_CODES.M)
     public static Bitmap getNotificationIcon(String packageName, Notification notification, Context context)
+    {
+        return loadSmallIcon(packageName, getSmallIconReference(notification), context);
+    }
+
+    /**
+     * @return {@link Icon} on Marshmallow and newer, icon resource ID otherwise.
+     */
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.M)
+    private static @Nullable Object getSmallIconReference(Notification notification)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            return notification.getSmallIcon();
+        else
+            return notification.icon;
+    }
+
+    @Nullable
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.M)
+    private static Bitmap loadSmallIcon(String packageName, @Nullable Object iconReference, Context context)
     {
         Drawable iconDrawable = null;
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
         {
-            Icon icon = notification.getSmallIcon();
-            if (icon == null)
+            if (iconReference == null)
                 return null;
 
-            iconDrawable = icon.loadDrawable(context);
+            iconDrawable = ((Icon) iconReference).loadDrawable(context);
         }
         else
         {
-            if (packageName == null)
+            if (packageName == null || iconReference == null)
                 return null;
 
-            int iconId = notification.icon;
+            int iconId = (Integer) iconReference;
             try
             {
                 Resources sourceAppResources = context.getPackageManager().getResourcesForApplication(packageName);
@@ -309,18 +334,67 @@ public class NotificationHandler {
         return null;
     }
 
+    /**
+     * Big image that is extracted from notification extras. Only extras entries that may contain the image are kept,
+     * so handle does not hold rest of the android notification.
+     */
+    private static class ExtrasImage extends LazyBitmap
+    {
+        private final Context context;
+        private final Bundle imageExtras;
+
+        private ExtrasImage(Context context, Bundle extras)
+        {
+            this.context = context;
+            this.imageExtras = getImageExtras(extras);
+        }
+
+        @Override
+        protected Bitmap load()
+        {
+            return getImage(context, imageExtras);
+        }
+    }
+
+    /**
+     * @return Copy of the extras with only entries that {@link #getImage(Context, Bundle)} reads.
+     */
+    private static Bundle getImageExtras(Bundle extras)
+    {
+        Bundle imageExtras = new Bundle();
+        copyParcelable(extras, imageExtras, Notification.EXTRA_PICTURE);
+        copyParcelable(extras, imageExtras, Notification.EXTRA_LARGE_ICON_BIG);
+        copyParcelable(extras, imageExtras, Notification.EXTRA_LARGE_ICON);
+
+        Bundle wearableExtensions = extras.getBundle("android.wearable.EXTENSIONS");
+        if (wearableExtensions != null)
+        {
+            Bundle wearableImage = new Bundle();
+            copyParcelable(wearableExtensions, wearableImage, "background");
+            imageExtras.putBundle("android.wearable.EXTENSIONS", wearableImage);
+        }
+
+        Bundle carExtensions = extras.getBundle("android.car.EXTENSIONS");
+        if (carExtensions != null)
+        {
+            Bundle carImage = new Bundle();
+            copyParcelable(carExtensions, carImage, "large_icon");
+            imageExtras.putBundle("android.car.EXTENSIONS", carImage);
+        }
+
+        return imageExtras;
+    }
+
+    private static void copyParcelable(Bundle from, Bundle to, String key)
+    {
+        Parcelable value = from.getParcelable(key);
+        if (value != null)
+            to.putParcelable(key, value);
+    }
+
 	public static String getAppName(Context context, String packageName)
 	{
-		final PackageManager pm = context.getPackageManager();
-		ApplicationInfo ai;
-		try {
-			ai = pm.getApplicationInfo( packageName, 0);
-		} catch (final NameNotFoundException e) {
-			ai = null;
-		}
-		final String applicationName = (String) (ai != null ? pm.getApplicationLabel(ai) : "Notification");
-		return applicationName;
-
+		return AppMetadataCache.getInstance(context).get(packageName).getLabel();
 	}
 
 	public static boolean isNotificationListenerSupported()
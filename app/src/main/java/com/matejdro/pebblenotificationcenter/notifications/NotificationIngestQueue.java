@@ -0,0 +1,254 @@
+package com.matejdro.pebblenotificationcenter.notifications;
+
+import android.app.Notification;
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import com.matejdro.pebblenotificationcenter.NotificationKey;
+import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
+import com.matejdro.pebblenotificationcenter.pebble.modules.DismissUpwardsModule;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Moves notification parsing off the listener callbacks.
+ *
+ * Listeners only hand over key and notification object, parsing is then performed on one of the ingest threads.
+ * All events of the same notification always go through the same thread, so they are processed in the order they were posted.
+ * Update of a notification that is still waiting to be parsed replaces the waiting one. When too many notifications are waiting,
+ * either oldest or newest one is dropped, depending on {@link PebbleNotificationCenter#INGEST_OVERFLOW_POLICY}.
+ */
+public class NotificationIngestQueue
+{
+    public static final int OVERFLOW_POLICY_DROP_OLDEST = 0;
+    public static final int OVERFLOW_POLICY_DROP_NEWEST = 1;
+
+    private static final int NUM_LANES = 2;
+    private static final int MAX_PENDING_NOTIFICATIONS = 50;
+
+    private static NotificationIngestQueue instance;
+
+    private final Context context;
+    private final ExecutorService[] lanes = new ExecutorService[NUM_LANES];
+
+    //Notifications that were posted but their parsing did not start yet. Notifications that cannot be updated are keyed by themselves.
+    private final LinkedHashMap<Object, PendingNotification> pending = new LinkedHashMap<>();
+
+    private int mergedNotifications = 0;
+    private int droppedNotifications = 0;
+
+    public static synchronized NotificationIngestQueue getInstance(Context context)
+    {
+        if (instance == null)
+            instance = new NotificationIngestQueue(context.getApplicationContext());
+
+        return instance;
+    }
+
+    private NotificationIngestQueue(Context context)
+    {
+        this.context = context;
+
+        for (int i = 0; i < NUM_LANES; i++)
+        {
+            final String threadName = "NC-Ingest-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    return new Thread(runnable, threadName);
+                }
+            });
+        }
+    }
+
+    public void post(NotificationKey key, Notification notification, boolean isDismissible)
+    {
+        Object pendingKey = getPendingKey(key);
+        PendingNotification pendingNotification = new PendingNotification(key, notification, isDismissible);
+
+        synchronized (pending)
+        {
+            PendingNotification existing = pendingKey == null ? null : pending.get(pendingKey);
+            if (existing != null)
+            {
+                //Older version was never parsed, so only the latest one is relevant. Its parse task is already queued.
+                existing.notification = notification;
+                existing.isDismissible = isDismissible;
+                mergedNotifications++;
+                Timber.d("Merged update of %s into waiting notification", key);
+                return;
+            }
+
+            if (pending.size() >= MAX_PENDING_NOTIFICATIONS && !makeRoom())
+            {
+                droppedNotifications++;
+                Timber.w("Ingest queue full, dropping %s", key);
+                return;
+            }
+
+            pending.put(pendingKey == null ? pendingNotification : pendingKey, pendingNotification);
+        }
+
+        final Object mapKey = pendingKey == null ? pendingNotification : pendingKey;
+        getLane(key).execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PendingNotification toParse;
+                synchronized (pending)
+                {
+                    toParse = pending.remove(mapKey);
+                }
+
+                //Notification was dropped or dismissed while waiting
+                if (toParse == null)
+                    return;
+
+                try
+                {
+                    NotificationHandler.newNotification(context, toParse.key, toParse.notification, toParse.isDismissible);
+                }
+                catch (Exception e)
+                {
+                    Timber.e(e, "Notification parsing failed");
+                }
+            }
+        });
+    }
+
+    public void dismiss(final NotificationKey key)
+    {
+        Object pendingKey = getPendingKey(key);
+        if (pendingKey != null)
+        {
+            synchronized (pending)
+            {
+                if (pending.remove(pendingKey) != null)
+                    Timber.d("Discarded waiting notification %s because it was dismissed", key);
+            }
+        }
+
+        //Dismiss must still go through the lane, because earlier version might be currently parsed
+        getLane(key).execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                DismissUpwardsModule.dismissNotification(context, key);
+            }
+        });
+    }
+
+    public void dismissPackage(final String pkg)
+    {
+        synchronized (pending)
+        {
+            Iterator<PendingNotification> iterator = pending.values().iterator();
+            while (iterator.hasNext())
+            {
+                if (pkg.equals(iterator.next().key.getPackage()))
+                    iterator.remove();
+            }
+        }
+
+        getLane(new NotificationKey(pkg, null, null)).execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                DismissUpwardsModule.dismissWholePackage(context, pkg);
+            }
+        });
+    }
+
+    public int getMergedNotifications()
+    {
+        synchronized (pending)
+        {
+            return mergedNotifications;
+        }
+    }
+
+    public int getDroppedNotifications()
+    {
+        synchronized (pending)
+        {
+            return droppedNotifications;
+        }
+    }
+
+    /**
+     * @return {@code true} if new notification can be queued.
+     */
+    private boolean makeRoom()
+    {
+        int policy = getOverflowPolicy();
+        if (policy == OVERFLOW_POLICY_DROP_NEWEST)
+            return false;
+
+        Iterator<PendingNotification> iterator = pending.values().iterator();
+        PendingNotification oldest = iterator.next();
+        iterator.remove();
+
+        droppedNotifications++;
+        Timber.w("Ingest queue full, dropping oldest waiting notification %s", oldest.key);
+        return true;
+    }
+
+    private int getOverflowPolicy()
+    {
+        try
+        {
+            return Integer.parseInt(PebbleNotificationCenter.getInMemorySettings().getSharedPreferences().getString(PebbleNotificationCenter.INGEST_OVERFLOW_POLICY, "0"));
+        }
+        catch (NumberFormatException e)
+        {
+            return OVERFLOW_POLICY_DROP_OLDEST;
+        }
+    }
+
+    /**
+     * Lane is picked by package, so whole-package dismissals are ordered with the notifications of that package.
+     */
+    private ExecutorService getLane(NotificationKey key)
+    {
+        String pkg = key.getPackage();
+        int hash = pkg == null ? 0 : pkg.hashCode();
+
+        return lanes[(hash & Integer.MAX_VALUE) % NUM_LANES];
+    }
+
+    /**
+     * Notifications without android ID (for example from accessibility service) cannot be updated, so they are never merged.
+     */
+    private static @Nullable Object getPendingKey(NotificationKey key)
+    {
+        if (key.getAndroidId() == null)
+            return null;
+
+        return key.getPackage() + "|" + key.getAndroidId() + "|" + key.getTag();
+    }
+
+    private static class PendingNotification
+    {
+        private final NotificationKey key;
+        private Notification notification;
+        private boolean isDismissible;
+
+        private PendingNotification(NotificationKey key, Notification notification, boolean isDismissible)
+        {
+            this.key = key;
+            this.notification = notification;
+            this.isDismissible = isDismissible;
+        }
+    }
+}
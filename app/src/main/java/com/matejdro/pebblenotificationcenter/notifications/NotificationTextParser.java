@@ -17,7 +17,6 @@ import com.matejdro.pebblenotificationcenter.PebbleNotification;
 import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSetting;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSettingStorage;
-import com.matejdro.pebblenotificationcenter.appsetting.SharedPreferencesAppStorage;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
@@ -149,7 +148,7 @@ public class NotificationTextParser {
     @TargetApi(value = Build.VERSION_CODES.JELLY_BEAN)
     public boolean parseInboxNotification(Context context, String pkg, Bundle extras)
     {
-        AppSettingStorage settingStorage = new SharedPreferencesAppStorage(context, pkg, PebbleNotificationCenter.getInMemorySettings().getDefaultSettingsStorage());
+        AppSettingStorage settingStorage = PebbleNotificationCenter.getInMemorySettings().getAppSettingStorage(pkg);
         if (!settingStorage.getBoolean(AppSetting.USE_ALTERNATE_INBOX_PARSER))
             return false;
 
@@ -292,39 +291,31 @@ public class NotificationTextParser {
 	private void parseRemoteView(RemoteViews views)
 	{
 		try {
-			Class remoteViewsClass = RemoteViews.class;
-			Class baseActionClass = Class.forName("android.widget.RemoteViews$Action");
-
-
-			Field actionsField = remoteViewsClass.getDeclaredField("mActions");
+			Field actionsField = ReflectionCache.getDeclaredField(RemoteViews.class, "mActions");
+			if (actionsField == null)
+				return;
 
-			actionsField.setAccessible(true);
+			Field idField = ReflectionCache.getDeclaredField(ReflectionCache.REMOTE_VIEWS_ACTION_CLASS, "viewId");
 
 			ArrayList<Object> actions = (ArrayList<Object>) actionsField.get(views);
 			for (Object action : actions) {
                 if (!action.getClass().getName().contains("$ReflectionAction"))
 					continue;
 
-				Field typeField = action.getClass().getDeclaredField("type");
-				typeField.setAccessible(true);
+				Field typeField = ReflectionCache.getDeclaredField(action.getClass(), "type");
+				Field valueField = ReflectionCache.getDeclaredField(action.getClass(), "value");
+				if (typeField == null || valueField == null)
+					continue;
+
 				int type = typeField.getInt(action);
                 if (type != 9 && type != 10)
 					continue;
 
 
 				int viewId = -1;
-				try
-				{
-					Field idField = baseActionClass.getDeclaredField("viewId");
-					idField.setAccessible(true);
+				if (idField != null)
 					viewId = idField.getInt(action);
-				}
-				catch (NoSuchFieldException e)
-				{
-				}
 
-				Field valueField = action.getClass().getDeclaredField("value");
-				valueField.setAccessible(true);
 				CharSequence value = (CharSequence) valueField.get(action);
 				
 				if (value == null ||
@@ -354,22 +345,18 @@ public class NotificationTextParser {
      * Jellybean notifications, but the field was private until KitKat.
      */
     public static Bundle getExtras(Notification notif) {
-        try {
-            Field extrasField = Notification.class.getDeclaredField("extras");
-            extrasField.setAccessible(true);
+        //Field is missing on pre-4.3 Android (just return null). Unexpected absence is reported by ReflectionCache.warmUp().
+        Field extrasField = ReflectionCache.getDeclaredField(Notification.class, "extras");
+        if (extrasField == null)
+            return null;
 
+        try {
             Bundle extras = (Bundle) extrasField.get(notif);
             if (extras == null) {
                 extras = new Bundle();
             }
             return extras;
         }
-        catch (NoSuchFieldException e)
-        {
-            //Error is normal on pre-4.3 Android (just return null). Otherwise report crash.
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
-                Crashlytics.logException(e);
-        }
         catch (IllegalAccessException e)
         {
             Crashlytics.logException(e);
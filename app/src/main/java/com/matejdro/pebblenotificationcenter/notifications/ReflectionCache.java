@@ -0,0 +1,133 @@
+package com.matejdro.pebblenotificationcenter.notifications;
+
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import com.crashlytics.android.Crashlytics;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Registry of hidden classes and fields that notification parsers access through reflection.
+ *
+ * Every class and field is only looked up once. Fields are made accessible when found.
+ * Classes and fields that do not exist on this device are remembered as missing, so they are not searched for again.
+ */
+public class ReflectionCache
+{
+    public static final String NOTIFICATION_CLASS = "android.app.Notification";
+    public static final String NOTIFICATION_ACTION_CLASS = "android.app.Notification$Action";
+    public static final String REMOTE_VIEWS_CLASS = "android.widget.RemoteViews";
+    public static final String REMOTE_VIEWS_ACTION_CLASS = "android.widget.RemoteViews$Action";
+    public static final String REMOTE_VIEWS_REFLECTION_ACTION_CLASS = "android.widget.RemoteViews$ReflectionAction";
+
+    private static final Object MISSING = new Object();
+
+    private static final ConcurrentHashMap<String, Object> classes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Object>> fields = new ConcurrentHashMap<>();
+
+    public static @Nullable Class<?> getClass(String name)
+    {
+        Object cached = classes.get(name);
+        if (cached == null)
+        {
+            try
+            {
+                cached = Class.forName(name);
+            }
+            catch (ClassNotFoundException e)
+            {
+                Timber.d("Class %s is not available", name);
+                cached = MISSING;
+            }
+
+            classes.put(name, cached);
+        }
+
+        return cached == MISSING ? null : (Class<?>) cached;
+    }
+
+    /**
+     * @return Accessible field declared directly in the class or {@code null} if class does not declare it.
+     */
+    public static @Nullable Field getDeclaredField(@Nullable Class<?> declaringClass, String name)
+    {
+        if (declaringClass == null)
+            return null;
+
+        ConcurrentHashMap<String, Object> classFields = fields.get(declaringClass);
+        if (classFields == null)
+        {
+            classFields = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, Object> existing = fields.putIfAbsent(declaringClass, classFields);
+            if (existing != null)
+                classFields = existing;
+        }
+
+        Object cached = classFields.get(name);
+        if (cached == null)
+        {
+            try
+            {
+                Field field = declaringClass.getDeclaredField(name);
+                field.setAccessible(true);
+                cached = field;
+            }
+            catch (NoSuchFieldException e)
+            {
+                Timber.d("Field %s.%s is not available", declaringClass.getName(), name);
+                cached = MISSING;
+            }
+            catch (SecurityException e)
+            {
+                Timber.w("Field %s.%s cannot be accessed", declaringClass.getName(), name);
+                cached = MISSING;
+            }
+
+            classFields.put(name, cached);
+        }
+
+        return cached == MISSING ? null : (Field) cached;
+    }
+
+    public static @Nullable Field getDeclaredField(String className, String name)
+    {
+        return getDeclaredField(getClass(className), name);
+    }
+
+    /**
+     * Resolve everything that parsers need up front, so first notification does not pay for it.
+     * Fields that should exist on this Android version, but do not, are reported.
+     */
+    public static void warmUp()
+    {
+        long startTime = System.currentTimeMillis();
+
+        Field extras = getDeclaredField(NOTIFICATION_CLASS, "extras");
+        if (extras == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            Crashlytics.logException(new NoSuchFieldException("Notification.extras"));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+        {
+            reportIfMissing(getDeclaredField(NOTIFICATION_CLASS, "actions"), "Notification.actions");
+            reportIfMissing(getDeclaredField(NOTIFICATION_ACTION_CLASS, "title"), "Notification.Action.title");
+            reportIfMissing(getDeclaredField(NOTIFICATION_ACTION_CLASS, "actionIntent"), "Notification.Action.actionIntent");
+        }
+
+        getDeclaredField(REMOTE_VIEWS_CLASS, "mActions");
+        getDeclaredField(REMOTE_VIEWS_ACTION_CLASS, "viewId");
+        getDeclaredField(REMOTE_VIEWS_REFLECTION_ACTION_CLASS, "type");
+        getDeclaredField(REMOTE_VIEWS_REFLECTION_ACTION_CLASS, "value");
+
+        Timber.d("Reflection warm-up took %d ms", System.currentTimeMillis() - startTime);
+    }
+
+    private static void reportIfMissing(@Nullable Field field, String name)
+    {
+        if (field == null)
+            Crashlytics.logException(new NoSuchFieldException(name));
+    }
+}
@@ -4,7 +4,6 @@ import android.app.Notification;
 import android.support.v4.app.NotificationCompatSideChannelService;
 
 import com.matejdro.pebblenotificationcenter.NotificationKey;
-import com.matejdro.pebblenotificationcenter.pebble.modules.DismissUpwardsModule;
 
 import timber.log.Timber;
 
@@ -17,7 +16,7 @@ public class SideChannelNotificationListener extends NotificationCompatSideChann
     public void notify(String packageName, int id, String tag, Notification notification)
     {
         Timber.d("Got new side channel notification");
-        NotificationHandler.newNotification(this, new NotificationKey(packageName, id, tag), notification,  true);
+        NotificationIngestQueue.getInstance(this).post(new NotificationKey(packageName, id, tag), notification, true);
     }
 
     @Override
@@ -26,12 +25,12 @@ public class SideChannelNotificationListener extends NotificationCompatSideChann
         NotificationKey key = new NotificationKey(packageName, id, tag);
         Timber.d("Dismiss side channel %s", key);
 
-        DismissUpwardsModule.dismissNotification(this, key);
+        NotificationIngestQueue.getInstance(this).dismiss(key);
     }
 
     @Override
     public void cancelAll(String packageName)
     {
-        DismissUpwardsModule.dismissWholePackage(this, packageName);
+        NotificationIngestQueue.getInstance(this).dismissPackage(packageName);
     }
 }
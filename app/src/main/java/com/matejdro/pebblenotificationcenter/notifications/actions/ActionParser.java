@@ -18,6 +18,7 @@ import com.matejdro.pebblenotificationcenter.appsetting.AppSetting;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSettingStorage;
 import com.matejdro.pebblenotificationcenter.notifications.NotificationHandler;
 import com.matejdro.pebblenotificationcenter.notifications.NotificationTextParser;
+import com.matejdro.pebblenotificationcenter.notifications.ReflectionCache;
 import com.matejdro.pebblenotificationcenter.pebble.modules.NotificationSendingModule;
 import com.matejdro.pebblecommons.util.TextUtil;
 import java.lang.reflect.Field;
@@ -156,21 +157,10 @@ public class ActionParser
             return;
 
         //Accessing through reflection is required for 4.2 devices
-        Field titleMethod;
-        Field intentMethod;
-
-        try
-        {
-            Class actionClass = Class.forName("android.app.Notification$Action");
-            titleMethod = actionClass.getDeclaredField("title");
-            intentMethod = actionClass.getDeclaredField("actionIntent");
-        } catch (ClassNotFoundException e) {
-            Crashlytics.logException(e);
-            return;
-        } catch (NoSuchFieldException e) {
-            Crashlytics.logException(e);
+        Field titleMethod = ReflectionCache.getDeclaredField(ReflectionCache.NOTIFICATION_ACTION_CLASS, "title");
+        Field intentMethod = ReflectionCache.getDeclaredField(ReflectionCache.NOTIFICATION_ACTION_CLASS, "actionIntent");
+        if (titleMethod == null || intentMethod == null)
             return;
-        }
 
 
         for (Object action : actions)
@@ -200,18 +190,15 @@ public class ActionParser
      */
     public static Object[] getActionsField(Notification notif) {
 
-        try {
-            Field actionsField = Class.forName("android.app.Notification").getDeclaredField("actions");
-            actionsField.setAccessible(true);
+        Field actionsField = ReflectionCache.getDeclaredField(Notification.class, "actions");
+        if (actionsField == null)
+            return null;
 
+        try {
             Object[] actions = (Object[]) actionsField.get(notif);
             return actions;
         } catch (IllegalAccessException e) {
             Crashlytics.logException(e);
-        } catch (NoSuchFieldException e) {
-            Crashlytics.logException(e);
-        } catch (ClassNotFoundException e) {
-            Crashlytics.logException(e);
         }
 
         return null;
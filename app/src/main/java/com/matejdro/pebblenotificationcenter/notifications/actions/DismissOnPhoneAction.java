@@ -84,10 +84,8 @@ public class DismissOnPhoneAction extends NotificationAction
     {
         int amount = 0;
 
-        for (int i = 0; i < service.sentNotifications.size(); i++)
+        for (ProcessedNotification notification : service.sentNotifications.getByWearGroup(group))
         {
-            ProcessedNotification notification = service.sentNotifications.valueAt(i);
-
             if (notification.source.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_GROUP_MESSAGE && notification.source.getWearGroupKey().equalsIgnoreCase(group))
             {
                 amount++;
@@ -99,10 +97,8 @@ public class DismissOnPhoneAction extends NotificationAction
 
     private static void dismissSummary(String group, NCTalkerService service)
     {
-        for (int i = 0; i < service.sentNotifications.size(); i++)
+        for (ProcessedNotification notification : service.sentNotifications.getByWearGroup(group))
         {
-            ProcessedNotification notification = service.sentNotifications.valueAt(i);
-
             if (notification.source.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_GROUP_SUMMARY && notification.source.getWearGroupKey().equalsIgnoreCase(group))
             {
                 JellybeanNotificationListener.dismissNotification(notification.source.getKey());
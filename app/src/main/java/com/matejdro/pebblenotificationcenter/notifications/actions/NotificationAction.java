@@ -1,5 +1,6 @@
 package com.matejdro.pebblenotificationcenter.notifications.actions;
 
+import android.os.Parcel;
 import android.os.Parcelable;
 
 import com.matejdro.pebblenotificationcenter.NCTalkerService;
@@ -29,6 +30,24 @@ public abstract class NotificationAction implements Parcelable
         return actionText;
     }
 
+    /**
+     * @return Independent copy of this action, made by parcelling it. Per-send state is not carried over.
+     */
+    public NotificationAction copy()
+    {
+        Parcel parcel = Parcel.obtain();
+        try
+        {
+            parcel.writeValue(this);
+            parcel.setDataPosition(0);
+            return (NotificationAction) parcel.readValue(getClass().getClassLoader());
+        }
+        finally
+        {
+            parcel.recycle();
+        }
+    }
+
     /*
         @return true if action definitely sent something towards Pebble
      */
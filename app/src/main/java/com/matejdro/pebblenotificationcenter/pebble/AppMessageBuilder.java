@@ -0,0 +1,107 @@
+package com.matejdro.pebblenotificationcenter.pebble;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+import com.matejdro.pebblecommons.pebble.PebbleCapabilities;
+import com.matejdro.pebblecommons.pebble.PebbleTalkerService;
+
+import timber.log.Timber;
+
+/**
+ * Builder of one AppMessage packet in the format described in protocol.txt (destination module at key 0, packet id at key 1).
+ *
+ * Builder knows encoded size of the packet, so modules can check how much still fits before adding entries
+ * and oversized packets are caught before they are sent to the watch.
+ */
+public class AppMessageBuilder
+{
+    private static final int DICTIONARY_HEADER_SIZE = 1;
+
+    /**
+     * Size of the header of one dictionary entry (4 bytes key, 1 byte type, 2 bytes length).
+     */
+    public static final int ENTRY_HEADER_SIZE = 7;
+
+    private final PebbleDictionary data = new PebbleDictionary();
+
+    public AppMessageBuilder(int module, int packet)
+    {
+        data.addUint8(0, (byte) module);
+        data.addUint8(1, (byte) packet);
+    }
+
+    public AppMessageBuilder addUint8(int key, int value)
+    {
+        data.addUint8(key, (byte) value);
+        return this;
+    }
+
+    public AppMessageBuilder addUint16(int key, int value)
+    {
+        data.addUint16(key, (short) value);
+        return this;
+    }
+
+    public AppMessageBuilder addInt32(int key, int value)
+    {
+        data.addInt32(key, value);
+        return this;
+    }
+
+    public AppMessageBuilder addString(int key, String value)
+    {
+        data.addString(key, value);
+        return this;
+    }
+
+    /**
+     * Array is not copied, so it must not be modified after it is added.
+     */
+    public AppMessageBuilder addBytes(int key, byte[] value)
+    {
+        data.addBytes(key, value);
+        return this;
+    }
+
+    /**
+     * Make watch switch to the destination module when it receives this packet.
+     */
+    public AppMessageBuilder switchToModule()
+    {
+        data.addUint8(999, (byte) 1);
+        return this;
+    }
+
+    /**
+     * @return Number of bytes this packet takes in the AppMessage buffer.
+     */
+    public int getSize()
+    {
+        int size = DICTIONARY_HEADER_SIZE;
+        for (PebbleTuple tuple : data)
+            size += ENTRY_HEADER_SIZE + tuple.length;
+
+        return size;
+    }
+
+    /**
+     * @return Number of value bytes that still fit into one more entry of this packet.
+     */
+    public int getBytesLeft(PebbleCapabilities watchCapabilities)
+    {
+        return watchCapabilities.getMaxAppmessageSize() - getSize() - ENTRY_HEADER_SIZE;
+    }
+
+    public void send(PebbleTalkerService service)
+    {
+        PebbleCapabilities watchCapabilities = service.getPebbleCommunication().getConnectedWatchCapabilities();
+        if (watchCapabilities != null && getSize() > watchCapabilities.getMaxAppmessageSize())
+        {
+            //Watch will reject this packet. Report the bug, but still send it so communication goes through its usual failure path.
+            Timber.e(new IllegalStateException("Oversized AppMessage"), "Packet %d/%d has %d bytes, watch accepts %d bytes",
+                    data.getUnsignedIntegerAsLong(0), data.getUnsignedIntegerAsLong(1), getSize(), watchCapabilities.getMaxAppmessageSize());
+        }
+
+        service.getPebbleCommunication().sendToPebble(data);
+    }
+}
@@ -0,0 +1,137 @@
+package com.matejdro.pebblenotificationcenter.pebble;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keyword to icon rules compiled into Aho-Corasick automaton.
+ *
+ * Every searched text is scanned once regardless of the number of rules. When several keywords are found,
+ * rule that comes first in the list wins.
+ */
+public class IconKeywordMatcher
+{
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private final Node root = new Node();
+    private final NativeNotificationIcon[] icons;
+
+    /**
+     * @param rules Keyword to icon rules, ordered by priority.
+     */
+    public IconKeywordMatcher(List<Map.Entry<String, NativeNotificationIcon>> rules)
+    {
+        icons = new NativeNotificationIcon[rules.size()];
+
+        for (int priority = 0; priority < rules.size(); priority++)
+        {
+            Map.Entry<String, NativeNotificationIcon> rule = rules.get(priority);
+            icons[priority] = rule.getValue();
+
+            String keyword = rule.getKey().toLowerCase(Locale.US);
+            if (keyword.isEmpty())
+                continue;
+
+            Node node = root;
+            for (int i = 0; i < keyword.length(); i++)
+            {
+                Node child = node.children.get(keyword.charAt(i));
+                if (child == null)
+                {
+                    child = new Node();
+                    node.children.put(keyword.charAt(i), child);
+                }
+
+                node = child;
+            }
+
+            node.bestMatch = Math.min(node.bestMatch, priority);
+        }
+
+        buildFailureLinks();
+    }
+
+    /**
+     * @return Icon of the highest priority keyword found in any of the texts or {@code null} if none was found.
+     */
+    public @Nullable NativeNotificationIcon match(String... texts)
+    {
+        int best = NO_MATCH;
+        for (String text : texts)
+        {
+            if (text != null)
+                best = Math.min(best, findBestMatch(text.toLowerCase(Locale.US)));
+        }
+
+        return best == NO_MATCH ? null : icons[best];
+    }
+
+    private int findBestMatch(String text)
+    {
+        int best = NO_MATCH;
+
+        Node node = root;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            while (node != root && !node.children.containsKey(c))
+                node = node.failure;
+
+            Node next = node.children.get(c);
+            if (next != null)
+                node = next;
+
+            best = Math.min(best, node.bestMatch);
+        }
+
+        return best;
+    }
+
+    private void buildFailureLinks()
+    {
+        root.failure = root;
+
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        for (Node child : root.children.values())
+        {
+            child.failure = root;
+            queue.add(child);
+        }
+
+        while (!queue.isEmpty())
+        {
+            Node node = queue.poll();
+
+            for (Map.Entry<Character, Node> childEntry : node.children.entrySet())
+            {
+                char c = childEntry.getKey();
+                Node child = childEntry.getValue();
+
+                Node failure = node.failure;
+                while (failure != root && !failure.children.containsKey(c))
+                    failure = failure.failure;
+
+                Node failureTarget = failure.children.get(c);
+                child.failure = failureTarget != null && failureTarget != child ? failureTarget : root;
+
+                //Keywords that end here via suffix are also matched here. Failure node is shallower, so it is already complete.
+                child.bestMatch = Math.min(child.bestMatch, child.failure.bestMatch);
+
+                queue.add(child);
+            }
+        }
+    }
+
+    private static class Node
+    {
+        private final HashMap<Character, Node> children = new HashMap<>();
+        private Node failure;
+        private int bestMatch = NO_MATCH;
+    }
+}
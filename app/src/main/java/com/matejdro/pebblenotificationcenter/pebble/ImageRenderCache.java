@@ -0,0 +1,342 @@
+package com.matejdro.pebblenotificationcenter.pebble;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Content-addressed cache of images that were already converted into Pebble format.
+ *
+ * Entries are keyed by the hash of the source bitmap pixels and all parameters that affect the output,
+ * so the same app icon is only resized, dithered and encoded once.
+ * Memory tier is bounded LRU. Optional disk tier keeps rendered icons across service restarts.
+ * Disk tier is only used when enabled in settings and never stores notification pictures, since they may be private.
+ */
+public class ImageRenderCache
+{
+    private static final int MEMORY_CACHE_SIZE = 512 * 1024;
+    private static final int DISK_CACHE_MAX_FILES = 300;
+    private static final int DISK_CACHE_TRIM_INTERVAL = 50;
+
+    private static final String ICON_KEY_PREFIX = "icon_";
+    private static final String IMAGE_KEY_PREFIX = "image_";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static ImageRenderCache instance;
+
+    private final LruCache<String, byte[]> memoryCache;
+    private final @Nullable File diskCacheDirectory;
+
+    private final AtomicInteger diskHits = new AtomicInteger();
+    private final AtomicInteger diskWrites = new AtomicInteger();
+
+    public static synchronized ImageRenderCache getInstance()
+    {
+        if (instance == null)
+        {
+            File directory = new File(PebbleNotificationCenter.getInstance().getCacheDir(), "rendered_images");
+            instance = new ImageRenderCache(directory);
+            instance.removeDisallowedDiskEntries();
+        }
+
+        return instance;
+    }
+
+    /**
+     * @param diskCacheDirectory directory for disk tier or {@code null} to only cache in memory.
+     */
+    public ImageRenderCache(@Nullable File diskCacheDirectory)
+    {
+        memoryCache = new LruCache<String, byte[]>(MEMORY_CACHE_SIZE)
+        {
+            @Override
+            protected int sizeOf(String key, byte[] value)
+            {
+                return value.length;
+            }
+        };
+
+        if (diskCacheDirectory != null && !diskCacheDirectory.isDirectory() && !diskCacheDirectory.mkdirs())
+        {
+            Timber.w("Cannot create image disk cache directory!");
+            diskCacheDirectory = null;
+        }
+
+        this.diskCacheDirectory = diskCacheDirectory;
+    }
+
+    public @Nullable byte[] get(String key)
+    {
+        byte[] data = memoryCache.get(key);
+        if (data != null || !canStoreOnDisk(key))
+            return data;
+
+        data = readFromDisk(key);
+        if (data != null)
+        {
+            diskHits.incrementAndGet();
+            memoryCache.put(key, data);
+        }
+
+        return data;
+    }
+
+    public void put(String key, byte[] data)
+    {
+        memoryCache.put(key, data);
+
+        if (canStoreOnDisk(key))
+            writeToDisk(key, data);
+    }
+
+    public void clear()
+    {
+        memoryCache.evictAll();
+        clearDisk();
+    }
+
+    /**
+     * Delete all images that are stored on disk. Memory tier is kept.
+     */
+    public void clearDisk()
+    {
+        if (diskCacheDirectory == null)
+            return;
+
+        File[] files = diskCacheDirectory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    public int getHitCount()
+    {
+        return memoryCache.hitCount() + diskHits.get();
+    }
+
+    public int getMissCount()
+    {
+        return memoryCache.missCount() - diskHits.get();
+    }
+
+    public int getEvictionCount()
+    {
+        return memoryCache.evictionCount();
+    }
+
+    public int getSizeBytes()
+    {
+        return memoryCache.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ImageRenderCache hits %d misses %d evictions %d size %d", getHitCount(), getMissCount(), getEvictionCount(), getSizeBytes());
+    }
+
+    /**
+     * Remove entries that must not be on disk with current settings (such as pictures stored by older versions
+     * or everything when disk tier is disabled) and leftovers of interrupted writes.
+     */
+    private void removeDisallowedDiskEntries()
+    {
+        if (diskCacheDirectory == null)
+            return;
+
+        File[] files = diskCacheDirectory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+        {
+            //Leftover temporary files are from writes that were interrupted
+            if (!canStoreOnDisk(file.getName()) || file.getName().endsWith(TEMP_FILE_SUFFIX))
+            {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private boolean canStoreOnDisk(String key)
+    {
+        return diskCacheDirectory != null && key.startsWith(ICON_KEY_PREFIX) &&
+                PebbleNotificationCenter.getInMemorySettings().getSharedPreferences().getBoolean(PebbleNotificationCenter.IMAGE_DISK_CACHE, false);
+    }
+
+    private @Nullable byte[] readFromDisk(String key)
+    {
+        File file = new File(diskCacheDirectory, key);
+        if (!file.isFile())
+            return null;
+
+        if (file.length() == 0)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+
+        FileInputStream stream = null;
+        try
+        {
+            byte[] data = new byte[(int) file.length()];
+            stream = new FileInputStream(file);
+
+            int read = 0;
+            while (read < data.length)
+            {
+                int count = stream.read(data, read, data.length - read);
+                if (count < 0)
+                    throw new IOException("Unexpected end of file");
+
+                read += count;
+            }
+
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        }
+        catch (IOException e)
+        {
+            Timber.w(e, "Image disk cache read failed!");
+
+            //Unreadable entry would fail again on every read
+            closeQuietly(stream);
+            stream = null;
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+        finally
+        {
+            closeQuietly(stream);
+        }
+    }
+
+    private void writeToDisk(String key, byte[] data)
+    {
+        //Write into temporary file first, so interrupted write never leaves truncated entry behind
+        File tempFile = new File(diskCacheDirectory, key + TEMP_FILE_SUFFIX);
+        File file = new File(diskCacheDirectory, key);
+
+        FileOutputStream stream = null;
+        boolean written = false;
+        try
+        {
+            stream = new FileOutputStream(tempFile);
+            stream.write(data);
+            stream.close();
+            stream = null;
+
+            written = tempFile.renameTo(file);
+        }
+        catch (IOException e)
+        {
+            Timber.w(e, "Image disk cache write failed!");
+        }
+        finally
+        {
+            closeQuietly(stream);
+        }
+
+        if (!written)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+
+        if (diskWrites.incrementAndGet() % DISK_CACHE_TRIM_INTERVAL == 0)
+            trimDiskCache();
+    }
+
+    private void trimDiskCache()
+    {
+        File[] files = diskCacheDirectory.listFiles();
+        if (files == null || files.length <= DISK_CACHE_MAX_FILES)
+            return;
+
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File lhs, File rhs)
+            {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        for (int i = 0; i < files.length - DISK_CACHE_MAX_FILES; i++)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            files[i].delete();
+        }
+    }
+
+    private static void closeQuietly(@Nullable java.io.Closeable closeable)
+    {
+        if (closeable == null)
+            return;
+
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    public static String getIconKey(Bitmap source, boolean colorScreen, int size, int tint, boolean blackBackground)
+    {
+        return ICON_KEY_PREFIX + getBitmapHash(source) + "_" + size + "_" + (colorScreen ? "c" : "bw") + "_" + Integer.toHexString(tint) + "_" + (blackBackground ? "b" : "w");
+    }
+
+    public static String getImageKey(Bitmap source, int maxWidth, int maxHeight, int maxSize)
+    {
+        return IMAGE_KEY_PREFIX + getBitmapHash(source) + "_" + maxWidth + "x" + maxHeight + "_" + maxSize;
+    }
+
+    /**
+     * @return 64-bit FNV-1a hash of the bitmap dimensions and pixels, hex encoded.
+     */
+    public static String getBitmapHash(Bitmap bitmap)
+    {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ width) * 0x100000001b3L;
+        hash = (hash ^ height) * 0x100000001b3L;
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int pixel : row)
+            {
+                hash = (hash ^ pixel) * 0x100000001b3L;
+            }
+        }
+
+        return Long.toHexString(hash);
+    }
+}
@@ -0,0 +1,353 @@
+package com.matejdro.pebblenotificationcenter.pebble;
+
+import android.graphics.Color;
+
+import com.matejdro.pebblecommons.pebble.PebbleImageToolkit;
+import com.matejdro.pebblecommons.util.TextUtil;
+import com.matejdro.pebblenotificationcenter.NCTalkerService;
+import com.matejdro.pebblenotificationcenter.ProcessedNotification;
+import com.matejdro.pebblenotificationcenter.notifications.actions.DismissOnPebbleAction;
+import com.matejdro.pebblenotificationcenter.notifications.actions.DismissOnPhoneAction;
+import com.matejdro.pebblenotificationcenter.notifications.actions.NotificationAction;
+import com.matejdro.pebblenotificationcenter.notifications.actions.WearVoiceAction;
+import com.matejdro.pebblenotificationcenter.util.TextReplacer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encoder of native notification packets (SDK2 extensible notifications and SDK3 BlobDB inserts) sent through developer connection.
+ *
+ * Packets are written directly into one reusable little endian buffer. Every size field is reserved and filled in place once its content
+ * is written, so nothing is copied until the final message is taken out. Several packets may be appended into one message,
+ * message starts with single "phone to watch" marker, followed by complete Pebble protocol packets.
+ */
+public class NativeNotificationEncoder
+{
+    private static final int ENDPOINT_EXTENSIBLE_NOTIFICATION = 3010;
+    private static final int ENDPOINT_BLOB_DB = 0xb1db;
+
+    private static final int TITLE_LIMIT = 64;
+    private static final int BODY_LIMIT = 512;
+    private static final int CANNED_RESPONSES_LIMIT = 128;
+
+    //Maximum size of fixed fields of one packet and of one action, apart from their texts
+    private static final int MAX_PACKET_HEADERS_SIZE = 128;
+    private static final int MAX_ACTION_HEADERS_SIZE = 16;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(2048).order(ByteOrder.LITTLE_ENDIAN);
+
+    public void sdk2Notification(ProcessedNotification notification, NCTalkerService service)
+    {
+        int numOfActions = getNumberOfActions(notification);
+        ensureCapacity(getMaxSize(notification));
+
+        int packetStart = startPacket(ENDPOINT_EXTENSIBLE_NOTIFICATION);
+        buffer.put((byte) 0); //ADD_NOTIFICATION type
+        buffer.put((byte) 1); //ADD_NOTIFICATION command
+        buffer.putInt(0); //flags (none for now)
+        buffer.putInt(notification.id); //notificaiton id
+        buffer.putInt(0); //?
+        buffer.putInt((int) (notification.source.getPostTime() / 1000)); //post time
+        buffer.put((byte) 1); //DEFAULT layout
+        buffer.put((byte) 2); //Size of attributes
+        buffer.put((byte) numOfActions); //Number of actions
+
+        // Write attributes
+        buffer.put((byte) 1); //Title
+        putAttributeText(notification.source.getTitle(), TITLE_LIMIT);
+
+        String body = notification.source.getText();
+        if (!notification.source.getSubtitle().isEmpty())
+            body = notification.source.getSubtitle() + "\n" + body;
+
+        buffer.put((byte) 3); //Body
+        putAttributeText(body, BODY_LIMIT);
+
+        // Write actions
+        for (int i = 0; i < numOfActions; i++)
+        {
+            NotificationAction action = notification.source.getActions().get(i);
+
+            buffer.put((byte) (i + 1));
+            if (action instanceof WearVoiceAction)
+            {
+                buffer.put((byte) 3); //Action type. 3 = text
+                putReplyAction((WearVoiceAction) action, notification, service);
+            }
+            else
+            {
+                buffer.put((byte) 2); //Action type. 2 = normal
+                buffer.put((byte) 1); //1 attribute
+                buffer.put((byte) 1); //Attribute Type = 1 (title)
+                putAttributeText(action.getActionText(), TITLE_LIMIT);
+            }
+        }
+
+        endPacket(packetStart);
+    }
+
+    public void sdk3Notification(ProcessedNotification notification, boolean dismissable, NCTalkerService service)
+    {
+        int numOfActions = getNumberOfActions(notification);
+        ensureCapacity(getMaxSize(notification));
+
+        short token = (short) (Math.random() * Short.MAX_VALUE);
+
+        int packetStart = startPacket(ENDPOINT_BLOB_DB);
+        buffer.put((byte) 1); //Insert command
+        buffer.putShort(token); //Command token (randomized)
+        buffer.put((byte) 4); //Notification database
+
+        //Notification key = UUID
+        buffer.put((byte) 16); //Key size = 16 bytes (2x long)
+        buffer.putLong(notification.id); //First long
+        buffer.putLong(notification.id); //Second long
+
+        //Notification object
+        int objectSizePosition = reserveSize();
+        buffer.putLong(notification.id); //Notification ID, First Long
+        buffer.putLong(notification.id); //Second long
+        putLongBigEndian(0xED429C16F6744220L); //Magic number
+        putLongBigEndian(0x95DA454F303F15E2L); //Magic number
+        buffer.putInt((int) (notification.source.getRawPostTime() / 1000)); //Notification timestamp
+        buffer.putShort((short) 0); //Duration of the item (not used for notifications, always 0)
+        buffer.put((byte) 1); //Item type to insert = Notification (1)
+        putShortBigEndian(dismissable ? 0x0100 : 0x1100); //Flags (magic value, depends on whether notification is dismissable or not)
+        buffer.put((byte) 4); //Layout (always 4)
+
+        boolean hasColor = notification.source.getColor() != Color.TRANSPARENT;
+
+        int payloadSizePosition = reserveSize();
+        buffer.put((byte) (hasColor ? 5 : 4)); //Attribute count
+        buffer.put((byte) numOfActions); //Action count
+
+        //ATTRIBUTES
+        //Title attribute
+        buffer.put((byte) 0x01);
+        putAttributeText(notification.source.getTitle(), TITLE_LIMIT);
+        //Subtitle attribute
+        buffer.put((byte) 0x02);
+        putAttributeText(notification.source.getSubtitle(), TITLE_LIMIT);
+        //Body attribute
+        buffer.put((byte) 0x03);
+        putAttributeText(notification.source.getText(), BODY_LIMIT);
+        //Color attribute
+        if (hasColor)
+        {
+            buffer.put((byte) 0x1c); //Attribute ID
+            buffer.putShort((short) 1); //Attribute size
+            buffer.put(PebbleImageToolkit.getGColor8FromRGBColor(notification.source.getColor())); //Color in GColor8 format
+        }
+
+        int iconID = notification.source.getNativeNotificationIcon().getIconID();
+        //Icon attribute
+        buffer.put((byte) 0x4);
+        buffer.putShort((short) 4); //Attribute size
+        buffer.putInt(iconID | 0x80000000);
+
+        //Actions
+        int dismissAction = getDismissActionIndex(notification);
+        for (int i = 0; i < numOfActions; i++)
+        {
+            NotificationAction action = notification.source.getActions().get(i);
+
+            buffer.put((byte) (i + 1)); //Action ID
+            if (action instanceof WearVoiceAction)
+            {
+                buffer.put((byte) 3); //Action type. 3 = reply
+                putReplyAction((WearVoiceAction) action, notification, service);
+            }
+            else
+            {
+                int actionType = i == dismissAction ? 4 : 2;
+                buffer.put((byte) actionType); //Action type. 2 = normal action, 4 = dismiss action
+                buffer.put((byte) 1); //1 attribute
+                buffer.put((byte) 1); //Attribute Type = 1 (title)
+                putAttributeText(action.getActionText(), TITLE_LIMIT);
+            }
+        }
+
+        fillSize(payloadSizePosition);
+        fillSize(objectSizePosition);
+        endPacket(packetStart);
+    }
+
+    public boolean isEmpty()
+    {
+        return buffer.position() == 0;
+    }
+
+    /**
+     * @return Number of bytes of all packets written since last {@link #takeMessage()}.
+     */
+    public int getSize()
+    {
+        return buffer.position();
+    }
+
+    /**
+     * @return Message with all packets written so far. Encoder is empty afterwards.
+     */
+    public byte[] takeMessage()
+    {
+        byte[] message = Arrays.copyOf(buffer.array(), buffer.position());
+        buffer.clear();
+
+        return message;
+    }
+
+    /**
+     * Drop all packets written since last {@link #takeMessage()}.
+     */
+    public void clear()
+    {
+        buffer.clear();
+    }
+
+    private int startPacket(int endpoint)
+    {
+        if (buffer.position() == 0)
+            buffer.put((byte) 1); //Message goes from phone to watch
+
+        int packetStart = buffer.position();
+        buffer.putShort((short) 0); //Size of the packet, filled in endPacket()
+        putShortBigEndian(endpoint);
+
+        return packetStart;
+    }
+
+    private void endPacket(int packetStart)
+    {
+        //Packet size does not include size and endpoint fields
+        int size = buffer.position() - packetStart - 4;
+        buffer.put(packetStart, (byte) (size >> 8));
+        buffer.put(packetStart + 1, (byte) size);
+    }
+
+    private int reserveSize()
+    {
+        int position = buffer.position();
+        buffer.putShort((short) 0);
+
+        return position;
+    }
+
+    /**
+     * Fill little endian size of everything written after the reserved field.
+     */
+    private void fillSize(int sizePosition)
+    {
+        buffer.putShort(sizePosition, (short) (buffer.position() - sizePosition - 2));
+    }
+
+    private void putShortBigEndian(int value)
+    {
+        buffer.put((byte) (value >> 8));
+        buffer.put((byte) value);
+    }
+
+    private void putLongBigEndian(long value)
+    {
+        buffer.putLong(Long.reverseBytes(value));
+    }
+
+    private void putReplyAction(WearVoiceAction voiceAction, ProcessedNotification notification, NCTalkerService service)
+    {
+        voiceAction.populateCannedList(service, notification, true);
+
+        buffer.put((byte) 2); //2 attributes
+
+        //Text attribute
+        buffer.put((byte) 1); //Attribute Type = 1 (title)
+        putAttributeText(TextReplacer.prepareString(voiceAction.getActionText(), TITLE_LIMIT), TITLE_LIMIT);
+
+        //Responses attribute
+        buffer.put((byte) 8); //Attribute Type = 8 (canned responses)
+        int sizePosition = reserveSize();
+
+        //Only whole responses are written, so list never ends in a middle of the response
+        int bytesLeft = CANNED_RESPONSES_LIMIT;
+        List<String> responses = voiceAction.getAllReplyOptions();
+        for (String response : responses)
+        {
+            int length = PebbleTextEncoder.getEncodedLength(response);
+            if (length + 1 > bytesLeft)
+                break;
+
+            PebbleTextEncoder.encode(response, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            buffer.put((byte) 0);
+            bytesLeft -= length + 1;
+        }
+
+        fillSize(sizePosition);
+    }
+
+    /**
+     * Write length-prefixed attribute text with user's replacements applied, trimmed so it does not exceed the limit in characters or in bytes.
+     */
+    private void putAttributeText(String text, int limit)
+    {
+        text = TextUtil.trimString(TextReplacer.getCurrent().replace(text), limit, true);
+
+        int sizePosition = reserveSize();
+        int length = PebbleTextEncoder.encode(text, buffer.array(), buffer.arrayOffset() + buffer.position(), limit);
+        buffer.position(buffer.position() + length);
+        buffer.putShort(sizePosition, (short) length);
+    }
+
+    private void ensureCapacity(int packetSize)
+    {
+        if (buffer.remaining() >= packetSize)
+            return;
+
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + packetSize)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+
+    /**
+     * @return Upper bound for the encoded size of the notification packet. All texts are limited, so it is known before encoding.
+     */
+    private static int getMaxSize(ProcessedNotification notification)
+    {
+        int numOfActions = getNumberOfActions(notification);
+        return MAX_PACKET_HEADERS_SIZE + 2 * TITLE_LIMIT + BODY_LIMIT + numOfActions * (MAX_ACTION_HEADERS_SIZE + TITLE_LIMIT + CANNED_RESPONSES_LIMIT);
+    }
+
+    private static int getNumberOfActions(ProcessedNotification notification)
+    {
+        if (notification.source.getActions() == null)
+            return 0;
+
+        return notification.source.getActions().size();
+    }
+
+    /**
+     * Determine which action is dismiss action (used in Pebble's "Dismiss all" option)
+     */
+    private static int getDismissActionIndex(ProcessedNotification notification)
+    {
+        int dismissAction = -1;
+        for (int i = 0; i < getNumberOfActions(notification); i++)
+        {
+            NotificationAction action = notification.source.getActions().get(i);
+
+            if (action instanceof DismissOnPhoneAction)
+            {
+                dismissAction = i;
+                break;
+            }
+            else if (action instanceof DismissOnPebbleAction)
+            {
+                dismissAction = i;
+            }
+        }
+
+        return dismissAction;
+    }
+}
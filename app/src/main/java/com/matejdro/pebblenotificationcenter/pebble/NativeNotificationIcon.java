@@ -2,10 +2,14 @@ package com.matejdro.pebblenotificationcenter.pebble;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.support.annotation.Nullable;
+
+import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
 
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public enum NativeNotificationIcon implements Parcelable
@@ -174,15 +178,53 @@ public enum NativeNotificationIcon implements Parcelable
 
     public static NativeNotificationIcon getIconForApplication(String pkg, String appName)
     {
-        pkg = pkg.toLowerCase();
-        appName = appName.toLowerCase();
+        NativeNotificationIcon icon = PebbleNotificationCenter.getInMemorySettings().getIconKeywordMatcher().match(pkg, appName);
+        return icon == null ? NOTIFICATION_GENERIC : icon;
+    }
+
+    /**
+     * @param customRules User's rules. They take priority over built-in ones.
+     */
+    public static IconKeywordMatcher compileKeywordMatcher(List<Map.Entry<String, NativeNotificationIcon>> customRules)
+    {
+        List<Map.Entry<String, NativeNotificationIcon>> rules = new ArrayList<>(customRules.size() + iconKeywords.size());
+        rules.addAll(customRules);
+        rules.addAll(iconKeywords);
+
+        return new IconKeywordMatcher(rules);
+    }
+
+    /**
+     * Parse user's rules. Every line contains one rule in <i>keyword=ICON_NAME</i> format. Invalid lines are ignored.
+     */
+    public static List<Map.Entry<String, NativeNotificationIcon>> parseKeywordRules(@Nullable String rulesText)
+    {
+        List<Map.Entry<String, NativeNotificationIcon>> rules = new ArrayList<>();
+        if (rulesText == null)
+            return rules;
 
-        for (Map.Entry<String, NativeNotificationIcon> potentialIcon : iconKeywords)
+        for (String line : rulesText.split("\n"))
         {
-            if (pkg.contains(potentialIcon.getKey()) || appName.contains(potentialIcon.getKey()))
-                return potentialIcon.getValue();
+            int separator = line.lastIndexOf('=');
+            if (separator <= 0)
+                continue;
+
+            String keyword = line.substring(0, separator).trim();
+            String iconName = line.substring(separator + 1).trim().toUpperCase(Locale.US);
+            if (keyword.isEmpty())
+                continue;
+
+            try
+            {
+                NativeNotificationIcon icon = valueOf(iconName);
+                if (icon != AUTOMATIC)
+                    rules.add(new AbstractMap.SimpleEntry<>(keyword, icon));
+            }
+            catch (IllegalArgumentException ignored)
+            {
+            }
         }
 
-        return NOTIFICATION_GENERIC;
+        return rules;
     }
 }
@@ -0,0 +1,183 @@
+package com.matejdro.pebblenotificationcenter.pebble;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * UTF-8 encoder for strings sent to the watch.
+ *
+ * Text is encoded in a single pass into a buffer that is reused by the calling thread. Text that does not fit into the byte limit
+ * is cut on the code point boundary, so watch never receives partial characters.
+ */
+public class PebbleTextEncoder
+{
+    private static final ThreadLocal<PebbleTextEncoder> instances = new ThreadLocal<PebbleTextEncoder>()
+    {
+        @Override
+        protected PebbleTextEncoder initialValue()
+        {
+            return new PebbleTextEncoder();
+        }
+    };
+
+    private byte[] buffer = new byte[1024];
+
+    /**
+     * @return Encoder of the current thread.
+     */
+    public static PebbleTextEncoder get()
+    {
+        return instances.get();
+    }
+
+    /**
+     * Encode text that contains fields separated by {@code \0}.
+     *
+     * @param separatorOffsets Receives index of the first byte after each separator. Unused entries are left untouched.
+     * @return Encoded text.
+     */
+    public byte[] encodeSeparated(String text, short[] separatorOffsets)
+    {
+        ensureCapacity(text.length() * 3);
+
+        int length = 0;
+        int separator = 0;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c == 0 && separator < separatorOffsets.length)
+                separatorOffsets[separator++] = (short) (length + 1);
+
+            if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+            {
+                length = writeCodePoint(Character.toCodePoint(c, text.charAt(i + 1)), buffer, length);
+                i++;
+            }
+            else
+            {
+                length = writeCodePoint(c, buffer, length);
+            }
+        }
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Encode text directly into the target array.
+     *
+     * @return Number of bytes written, never more than maxBytes.
+     */
+    public static int encode(String text, byte[] target, int offset, int maxBytes)
+    {
+        int end = offset + maxBytes;
+        int position = offset;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            int codePoint = c;
+            int chars = 1;
+            if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+            {
+                codePoint = Character.toCodePoint(c, text.charAt(i + 1));
+                chars = 2;
+            }
+
+            if (position + getEncodedLength(codePoint) > end)
+                break;
+
+            position = writeCodePoint(codePoint, target, position);
+            i += chars - 1;
+        }
+
+        return position - offset;
+    }
+
+    /**
+     * Write text with little endian 16-bit length prefix, as expected by Pebble protocol attributes.
+     */
+    public void writeLengthPrefixed(DataOutputStream stream, String text, int maxBytes) throws IOException
+    {
+        ensureCapacity(maxBytes);
+        int length = encode(text, buffer, 0, maxBytes);
+
+        stream.writeByte(length & 0xFF);
+        stream.writeByte((length >> 8) & 0xFF);
+        stream.write(buffer, 0, length);
+    }
+
+    /**
+     * @return Number of bytes that text takes when encoded.
+     */
+    public static int getEncodedLength(String text)
+    {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+            {
+                length += 4;
+                i++;
+            }
+            else
+            {
+                length += getEncodedLength(c);
+            }
+        }
+
+        return length;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (buffer.length < capacity)
+            buffer = new byte[Math.max(capacity, buffer.length * 2)];
+    }
+
+    private static int getEncodedLength(int codePoint)
+    {
+        if (codePoint < 0x80)
+            return 1;
+        else if (codePoint < 0x800)
+            return 2;
+        else if (codePoint < 0x10000)
+            return 3;
+        else
+            return 4;
+    }
+
+    private static int writeCodePoint(int codePoint, byte[] target, int position)
+    {
+        //Unpaired surrogates cannot be encoded
+        if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)
+            codePoint = '?';
+
+        if (codePoint < 0x80)
+        {
+            target[position++] = (byte) codePoint;
+        }
+        else if (codePoint < 0x800)
+        {
+            target[position++] = (byte) (0xC0 | (codePoint >> 6));
+            target[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        else if (codePoint < 0x10000)
+        {
+            target[position++] = (byte) (0xE0 | (codePoint >> 12));
+            target[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            target[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        else
+        {
+            target[position++] = (byte) (0xF0 | (codePoint >> 18));
+            target[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            target[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            target[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+
+        return position;
+    }
+}
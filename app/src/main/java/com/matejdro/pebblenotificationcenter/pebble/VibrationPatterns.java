@@ -0,0 +1,62 @@
+package com.matejdro.pebblenotificationcenter.pebble;
+
+import com.matejdro.pebblecommons.vibration.PebbleVibrationPattern;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Vibration patterns in the byte format that watchapp expects.
+ *
+ * Patterns from settings are only parsed once, returned arrays are shared and must not be modified.
+ */
+public class VibrationPatterns
+{
+    public static final byte[] NO_VIBRATION = new byte[] { 0, 0 };
+
+    //There is only a handful of different patterns in the settings. Limit only guards against unexpected growth.
+    private static final int MAX_CACHED_PATTERNS = 64;
+    private static final ConcurrentHashMap<String, byte[]> parsedPatterns = new ConcurrentHashMap<>();
+
+    public static byte[] parse(String pattern)
+    {
+        byte[] parsed = parsedPatterns.get(pattern);
+        if (parsed == null)
+        {
+            parsed = toArray(PebbleVibrationPattern.parseVibrationPattern(pattern));
+
+            if (parsedPatterns.size() >= MAX_CACHED_PATTERNS)
+                parsedPatterns.clear();
+            parsedPatterns.put(pattern, parsed);
+        }
+
+        return parsed;
+    }
+
+    public static byte[] fromAndroidVibrationPattern(long[] pattern)
+    {
+        return toArray(PebbleVibrationPattern.getFromAndroidVibrationPattern(pattern));
+    }
+
+    /**
+     * Write pattern in the format used by config packets: one byte with pattern length followed by the pattern.
+     *
+     * @return Offset after written pattern.
+     */
+    public static int write(byte[] pattern, byte[] target, int offset)
+    {
+        target[offset] = (byte) pattern.length;
+        System.arraycopy(pattern, 0, target, offset + 1, pattern.length);
+
+        return offset + 1 + pattern.length;
+    }
+
+    private static byte[] toArray(List<Byte> pattern)
+    {
+        byte[] array = new byte[pattern.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = pattern.get(i);
+
+        return array;
+    }
+}
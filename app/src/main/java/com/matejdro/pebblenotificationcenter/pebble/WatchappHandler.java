@@ -16,7 +16,13 @@ import com.matejdro.pebblenotificationcenter.R;
 
 public class WatchappHandler extends BroadcastReceiver
 {
-    public static final int SUPPORTED_PROTOCOL = 43;
+    public static final int SUPPORTED_PROTOCOL = 44;
+    public static final int MIN_SUPPORTED_PROTOCOL = 43;
+
+    /**
+     * First protocol version that accepts multiple variable sized text chunks in one text packet.
+     */
+    public static final int PROTOCOL_TEXT_WINDOW = 44;
     public static final String INTENT_UPDATE_WATCHAPP = "com.matejdro.pebblenotificationcenter.UPDATE_WATCHAPP";
 
     public static final boolean BETA = false;
@@ -25,6 +31,11 @@ public class WatchappHandler extends BroadcastReceiver
     public static final String WATCHAPP_URL_BETA = "https://plus.google.com/communities/116982109550451242571";
 
 
+    public static boolean isProtocolSupported(int version)
+    {
+        return version >= MIN_SUPPORTED_PROTOCOL && version <= SUPPORTED_PROTOCOL;
+    }
+
     public static boolean isFirstRun(SharedPreferences settings)
     {
         return settings.getBoolean("FirstRun", false);
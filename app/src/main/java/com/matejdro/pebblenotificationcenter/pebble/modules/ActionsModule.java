@@ -4,7 +4,6 @@ import com.getpebble.android.kit.util.PebbleDictionary;
 import com.matejdro.pebblecommons.pebble.CommModule;
 import com.matejdro.pebblecommons.pebble.PebbleCommunication;
 import com.matejdro.pebblecommons.pebble.PebbleTalkerService;
-import com.matejdro.pebblecommons.util.TextUtil;
 import com.matejdro.pebblenotificationcenter.NCTalkerService;
 import com.matejdro.pebblenotificationcenter.ProcessedNotification;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSetting;
@@ -15,6 +14,9 @@ import com.matejdro.pebblenotificationcenter.notifications.actions.WearVoiceActi
 import com.matejdro.pebblenotificationcenter.notifications.actions.lists.ActionList;
 import com.matejdro.pebblenotificationcenter.notifications.actions.lists.NotificationActionList;
 import com.matejdro.pebblenotificationcenter.notifications.actions.lists.WritingPhrasesList;
+import com.matejdro.pebblenotificationcenter.pebble.AppMessageBuilder;
+import com.matejdro.pebblenotificationcenter.pebble.PebbleTextEncoder;
+import com.matejdro.pebblenotificationcenter.util.TextReplacer;
 
 import timber.log.Timber;
 
@@ -40,13 +42,8 @@ public class ActionsModule extends CommModule
     private void sendNextListItems()
     {
         Timber.d("Sending action list items");
-        PebbleDictionary data = new PebbleDictionary();
-
         byte[] bytes = new byte[3];
 
-        data.addUint8(0, (byte) 4);
-        data.addUint8(1, (byte) 0);
-
         int segmentSize = Math.min(listSize - nextListItemToSend, 4);
 
         bytes[0] = (byte) nextListItemToSend;
@@ -57,16 +54,16 @@ public class ActionsModule extends CommModule
 
         for (int i = 0; i < segmentSize; i++)
         {
-            String text = TextUtil.prepareString(list.getItem(i + nextListItemToSend), 18);
-            System.arraycopy(text.getBytes(), 0, textData, i * 19, text.getBytes().length);
+            String text = TextReplacer.prepareString(list.getItem(i + nextListItemToSend), 18);
+            PebbleTextEncoder.encode(text, textData, i * 19, 18);
 
             textData[19 * (i + 1) -1 ] = 0;
         }
 
-        data.addBytes(2, bytes);
-        data.addBytes(3, textData);
-
-        getService().getPebbleCommunication().sendToPebble(data);
+        new AppMessageBuilder(4, 0)
+                .addBytes(2, bytes)
+                .addBytes(3, textData)
+                .send(getService());
 
         nextListItemToSend += 4;
         if (nextListItemToSend >= listSize)
@@ -75,12 +72,7 @@ public class ActionsModule extends CommModule
 
     private void sendVoiceStart()
     {
-        PebbleDictionary data = new PebbleDictionary();
-
-        data.addUint8(0, (byte) 4);
-        data.addUint8(1, (byte) 1);
-
-        getService().getPebbleCommunication().sendToPebble(data);
+        new AppMessageBuilder(4, 1).send(getService());
     }
 
 
@@ -1,8 +1,6 @@
 package com.matejdro.pebblenotificationcenter.pebble.modules;
 
 import android.content.Context;
-import android.content.Intent;
-import android.util.SparseArray;
 
 import com.getpebble.android.kit.PebbleKit;
 import com.getpebble.android.kit.util.PebbleDictionary;
@@ -13,10 +11,13 @@ import com.matejdro.pebblecommons.pebble.PebbleUtil;
 import com.matejdro.pebblenotificationcenter.NCTalkerService;
 import com.matejdro.pebblenotificationcenter.NotificationKey;
 import com.matejdro.pebblenotificationcenter.PebbleNotification;
+import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
 import com.matejdro.pebblenotificationcenter.ProcessedNotification;
+import com.matejdro.pebblenotificationcenter.SentNotificationRegistry;
+import com.matejdro.pebblenotificationcenter.ServiceHandoff;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSetting;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSettingStorage;
-import com.matejdro.pebblenotificationcenter.appsetting.SharedPreferencesAppStorage;
+import com.matejdro.pebblenotificationcenter.pebble.AppMessageBuilder;
 import com.matejdro.pebblenotificationcenter.pebble.NotificationCenterDeveloperConnection;
 
 import java.util.Iterator;
@@ -31,35 +32,21 @@ import timber.log.Timber;
 public class DismissUpwardsModule extends CommModule
 {
     public static final int MODULE_DISMISS_UPWARDS = 3;
-    public static final String INTENT_DISMISS_NOTIFICATION = "DismissOneNotification";
-    public static final String INTENT_DISMISS_PEBBLE_ID = "DismissPebbleID";
-    public static final String INTENT_DISMISS_PACKAGE = "DismissOneNotification";
-    public static final String INTENT_DISMISS_NOTIFICATION_ID = "DismissOneExactID";
-
     private Queue<Integer> dismissQueue = new LinkedList<Integer>();
 
     public DismissUpwardsModule(PebbleTalkerService service)
     {
         super(service);
-
-        service.registerIntent(INTENT_DISMISS_NOTIFICATION, this);
-        service.registerIntent(INTENT_DISMISS_PACKAGE, this);
-        service.registerIntent(INTENT_DISMISS_PEBBLE_ID, this);
-        service.registerIntent(INTENT_DISMISS_NOTIFICATION_ID, this);
     }
 
     private void sendDismiss(Integer id)
     {
         Timber.d("Dismissing upwards %d", id);
 
-        PebbleDictionary data = new PebbleDictionary();
-
-        data.addUint8(0, (byte) 3);
-        data.addUint8(1, (byte) 0);
-        data.addInt32(2, id);
-        data.addUint8(3, (byte) (NotificationSendingModule.get(getService()).isAnyNotificationWaiting() ? 1 : 0));
-        
-        getService().getPebbleCommunication().sendToPebble(data);
+        new AppMessageBuilder(3, 0)
+                .addInt32(2, id)
+                .addUint8(3, NotificationSendingModule.get(getService()).isAnyNotificationWaiting() ? 1 : 0)
+                .send(getService());
     }
 
     public void queueDismiss(Integer id)
@@ -126,11 +113,7 @@ public class DismissUpwardsModule extends CommModule
 
         int prevNotification = 0;
 
-        AppSettingStorage settingsStorage;
-        if (key.getPackage() == null)
-            settingsStorage = NCTalkerService.fromPebbleTalkerService(getService()).getDefaultSettingsStorage();
-        else
-            settingsStorage = new SharedPreferencesAppStorage(getService(), key.getPackage(), NCTalkerService.fromPebbleTalkerService(getService()).getDefaultSettingsStorage());
+        AppSettingStorage settingsStorage = PebbleNotificationCenter.getInMemorySettings().getAppSettingStorage(key.getPackage());
 
         boolean syncDismissUp = settingsStorage.getBoolean(AppSetting.DISMISS_UPWARDS);
         Timber.d("SyncDismissUp: %b", syncDismissUp);
@@ -138,30 +121,20 @@ public class DismissUpwardsModule extends CommModule
         if (!syncDismissUp)
             return 0;
 
-        SparseArray<ProcessedNotification> sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
+        SentNotificationRegistry sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
 
-        for (int i = 0; i < sentNotifications.size(); i++)
+        for (ProcessedNotification notification : sentNotifications.getByKey(key))
         {
-            ProcessedNotification notification = sentNotifications.valueAt(i);
-
             Timber.d("OtherNotify: %b %s %d", notification.source.isListNotification(), notification.source.getKey(), notification.source.getWearGroupType());
 
-            if (notification.source.isSameNotification(key))
-            {
-                prevNotification = notification.id;
+            prevNotification = notification.id;
 
-                dismissSimilarWearNotifications(notification, dismissImmediately);
+            dismissSimilarWearNotifications(notification, dismissImmediately);
 
-                if (dismissImmediately)
-                {
-                    dismissUpwards(notification);
-                    i--;
-                }
-                else
-                {
-                    dismissProcessedNotification(getService(), notification.id);
-                }
-            }
+            if (dismissImmediately)
+                dismissUpwards(notification);
+            else
+                dismissProcessedNotification(getService(), notification.id);
         }
 
         return prevNotification;
@@ -176,17 +149,15 @@ public class DismissUpwardsModule extends CommModule
         if (notification.source.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_DISABLED)
             return;
 
-        SparseArray<ProcessedNotification> sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
+        SentNotificationRegistry sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
 
         boolean syncDismissUp = notification.source.getSettingStorage(getService()).getBoolean(AppSetting.DISMISS_UPWARDS);
         Timber.d("SyncDismissUp: %b", syncDismissUp);
         if (!syncDismissUp)
             return;
 
-        for (int i = 0; i < sentNotifications.size(); i++)
+        for (ProcessedNotification compare : sentNotifications.getByWearGroup(notification.source.getWearGroupKey()))
         {
-            ProcessedNotification compare = sentNotifications.valueAt(i);
-
             Timber.d("Other %s %s %s", compare.source.getKey(), compare.source.getWearGroupType(), compare.source.getWearGroupKey());
 
             //Group message should not dismiss other group messages, but summary can dismiss all group messages
@@ -222,57 +193,29 @@ public class DismissUpwardsModule extends CommModule
         if (pkg == null)
             return;
 
-        AppSettingStorage settingsStorage = new SharedPreferencesAppStorage(getService(), pkg, NCTalkerService.fromPebbleTalkerService(getService()).getDefaultSettingsStorage());
+        AppSettingStorage settingsStorage = PebbleNotificationCenter.getInMemorySettings().getAppSettingStorage(pkg);
 
         boolean syncDismissUp = settingsStorage.getBoolean(AppSetting.DISMISS_UPWARDS);
         if (!syncDismissUp)
             return;
 
-        SparseArray<ProcessedNotification> sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
-        for (int i = 0; i < sentNotifications.size(); i++)
+        SentNotificationRegistry sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
+        for (ProcessedNotification notification : sentNotifications.getByPackage(pkg))
         {
-            ProcessedNotification notification = sentNotifications.valueAt(i);
-
-            if (notification.source.getKey().getPackage().equals(pkg))
-            {
-                dismissUpwards(notification);
-                i--;
-            }
+            dismissUpwards(notification);
         }
     }
 
-    @Override
-    public void gotIntent(Intent intent)
+    private void processDismissNotificationId(int id)
     {
-        if (intent.getAction().equals(INTENT_DISMISS_NOTIFICATION))
-        {
-            NotificationKey key = (NotificationKey) intent.getParcelableExtra("key");
-            processDismissUpwards(key, true);
-        }
-        else if (intent.getAction().equals(INTENT_DISMISS_PACKAGE))
-        {
-            String pkg = intent.getStringExtra("package");
-            processDismissUpwardsWholePackage(pkg);
-        }
-        else if (intent.getAction().equals(INTENT_DISMISS_PEBBLE_ID))
-        {
-            int id = intent.getIntExtra("id", -1);
-            queueDismiss(id);
-        }
-        else if (intent.getAction().equals(INTENT_DISMISS_NOTIFICATION_ID))
+        ProcessedNotification notification = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications.get(id);
+        if (notification == null)
         {
-            int id = intent.getIntExtra("id", -1);
-
-            ProcessedNotification notification = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications.get(id);
-            if (notification == null)
-            {
-                Timber.w("Invalid notification ID!");
-                return;
-            }
-
-            dismissUpwards(notification);
+            Timber.w("Invalid notification ID!");
+            return;
         }
 
+        dismissUpwards(notification);
     }
 
     @Override
@@ -300,42 +243,52 @@ public class DismissUpwardsModule extends CommModule
     {
     }
 
-    public static void dismissPebbleID(Context context, int id)
+    public static void dismissPebbleID(Context context, final int id)
     {
-        Intent intent = new Intent(context, NCTalkerService.class);
-        intent.setAction(INTENT_DISMISS_PEBBLE_ID);
-        intent.putExtra("id", id);
-
-        context.startService(intent);
+        ServiceHandoff.post(context, new ServiceHandoff.Command()
+        {
+            @Override
+            public void execute(PebbleTalkerService service)
+            {
+                get(service).queueDismiss(id);
+            }
+        });
     }
 
-    public static void dismissNotification(Context context, NotificationKey key)
+    public static void dismissNotification(Context context, final NotificationKey key)
     {
-        Intent intent = new Intent(context, NCTalkerService.class);
-        intent.setAction(INTENT_DISMISS_NOTIFICATION);
-        intent.putExtra("key", key);
-
-        context.startService(intent);
+        ServiceHandoff.post(context, new ServiceHandoff.Command()
+        {
+            @Override
+            public void execute(PebbleTalkerService service)
+            {
+                get(service).processDismissUpwards(key, true);
+            }
+        });
     }
 
-    public static void dismissProcessedNotification(Context context, int id)
+    public static void dismissProcessedNotification(Context context, final int id)
     {
-        Intent intent = new Intent(context, NCTalkerService.class);
-        intent.setAction(INTENT_DISMISS_NOTIFICATION_ID);
-        intent.putExtra("id", id);
-
-        context.startService(intent);
+        ServiceHandoff.post(context, new ServiceHandoff.Command()
+        {
+            @Override
+            public void execute(PebbleTalkerService service)
+            {
+                get(service).processDismissNotificationId(id);
+            }
+        });
     }
 
-
-    public static void dismissWholePackage(Context context, String pkg)
+    public static void dismissWholePackage(Context context, final String pkg)
     {
-        Intent intent = new Intent(context, NCTalkerService.class);
-        intent.setAction(INTENT_DISMISS_PACKAGE);
-        intent.putExtra("package", pkg);
-
-        context.startService(intent);
-
+        ServiceHandoff.post(context, new ServiceHandoff.Command()
+        {
+            @Override
+            public void execute(PebbleTalkerService service)
+            {
+                get(service).processDismissUpwardsWholePackage(pkg);
+            }
+        });
     }
 
     public static DismissUpwardsModule get(PebbleTalkerService service)
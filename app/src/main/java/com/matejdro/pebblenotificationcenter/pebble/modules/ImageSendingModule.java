@@ -8,13 +8,14 @@ import android.support.annotation.ColorInt;
 
 import com.getpebble.android.kit.util.PebbleDictionary;
 import com.matejdro.pebblecommons.pebble.CommModule;
-import com.matejdro.pebblecommons.pebble.PebbleCapabilities;
 import com.matejdro.pebblecommons.pebble.PebbleCommunication;
 import com.matejdro.pebblecommons.pebble.PebbleImageToolkit;
 import com.matejdro.pebblecommons.pebble.PebbleTalkerService;
 import com.matejdro.pebblenotificationcenter.NCTalkerService;
 import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
 import com.matejdro.pebblenotificationcenter.ProcessedNotification;
+import com.matejdro.pebblenotificationcenter.pebble.AppMessageBuilder;
+import com.matejdro.pebblenotificationcenter.pebble.ImageRenderCache;
 
 import java.io.ByteArrayOutputStream;
 
@@ -70,14 +71,9 @@ public class ImageSendingModule extends CommModule
 
         System.arraycopy(imageData, nextByteToSend, bytes, 1, bytesToSend);
 
-        PebbleDictionary data = new PebbleDictionary();
-
-        data.addUint8(0, (byte) 5);
-        data.addUint8(1, (byte) 0);
-
-        data.addBytes(2, bytes);
-
-        getService().getPebbleCommunication().sendToPebble(data);
+        new AppMessageBuilder(5, 0)
+                .addBytes(2, bytes)
+                .send(getService());
 
         nextByteToSend += bytesToSend;
         if (nextByteToSend >= imageData.length)
@@ -114,6 +110,11 @@ public class ImageSendingModule extends CommModule
         int notificationID = message.getInteger(2).intValue();
 
         ProcessedNotification notification = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications.get(notificationID);
+
+        //Payload of delivered notification might have been dropped to save memory
+        if (notification != null)
+            NotificationSendingModule.get(getService()).ensureImagesRendered(notification);
+
         startSendingImage(notification);
     }
 
@@ -122,6 +123,21 @@ public class ImageSendingModule extends CommModule
         if (originalImage == null)
             return null;
 
+        ImageRenderCache cache = ImageRenderCache.getInstance();
+        String key = ImageRenderCache.getImageKey(originalImage, MAX_IMAGE_WIDTH, MAX_IMAGE_HEIGHT, MAX_IMAGE_SIZE);
+
+        byte[] imageData = cache.get(key);
+        if (imageData == null)
+        {
+            imageData = renderImage(originalImage);
+            cache.put(key, imageData);
+        }
+
+        return imageData;
+    }
+
+    private static byte[] renderImage(Bitmap originalImage)
+    {
         Bitmap image = PebbleImageToolkit.resizePreservingRatio(originalImage, MAX_IMAGE_WIDTH, MAX_IMAGE_HEIGHT);
         image = PebbleImageToolkit.ditherToPebbleTimeColors(image);
         byte[] imageData = PebbleImageToolkit.getIndexedPebbleImageBytes(image);
@@ -138,13 +154,26 @@ public class ImageSendingModule extends CommModule
         return imageData;
     }
 
-    public static byte[] prepareTintedIcon(Bitmap originalImage, Context context, PebbleCapabilities capabilities, @ColorInt int iconTint, boolean blackBackground)
+    public static byte[] prepareTintedIcon(Bitmap originalImage, Context context, boolean colorScreen, @ColorInt int iconTint, boolean blackBackground)
     {
         if (originalImage == null)
             return null;
 
-        boolean colorScreen = capabilities.hasColorScreen();
+        ImageRenderCache cache = ImageRenderCache.getInstance();
+        String key = ImageRenderCache.getIconKey(originalImage, colorScreen, ICON_SIZE, iconTint, blackBackground);
+
+        byte[] iconData = cache.get(key);
+        if (iconData == null)
+        {
+            iconData = renderTintedIcon(originalImage, colorScreen, iconTint, blackBackground);
+            cache.put(key, iconData);
+        }
 
+        return iconData;
+    }
+
+    private static byte[] renderTintedIcon(Bitmap originalImage, boolean colorScreen, @ColorInt int iconTint, boolean blackBackground)
+    {
         Bitmap image = PebbleImageToolkit.resizePreservingRatio(originalImage, ICON_SIZE, ICON_SIZE, colorScreen);
         image = PebbleImageToolkit.createMaskFromAlpha(image, iconTint, blackBackground);
 
@@ -165,13 +194,13 @@ public class ImageSendingModule extends CommModule
         return outputStream.toByteArray();
     }
 
-    public static byte[] prepareIcon(Bitmap originalImage, Context context, PebbleCapabilities capabilities)
+    public static byte[] prepareIcon(Bitmap originalImage, Context context, boolean colorScreen)
     {
         if (originalImage == null)
             return null;
 
         boolean whiteImage = PreferenceManager.getDefaultSharedPreferences(context).getBoolean(PebbleNotificationCenter.WHITE_NOTIFICATION_TEXT, false);
-        return prepareTintedIcon(originalImage, context, capabilities, whiteImage ? Color.WHITE : Color.BLACK, whiteImage);
+        return prepareTintedIcon(originalImage, context, colorScreen, whiteImage ? Color.WHITE : Color.BLACK, whiteImage);
     }
 
     @Override
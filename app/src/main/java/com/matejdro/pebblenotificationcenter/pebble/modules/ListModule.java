@@ -10,15 +10,18 @@ import com.matejdro.pebblecommons.pebble.PebbleCapabilities;
 import com.matejdro.pebblecommons.pebble.PebbleCommunication;
 import com.matejdro.pebblecommons.pebble.PebbleImageToolkit;
 import com.matejdro.pebblecommons.pebble.PebbleTalkerService;
-import com.matejdro.pebblecommons.pebble.PebbleUtil;
 import com.matejdro.pebblecommons.util.TextUtil;
 import com.matejdro.pebblenotificationcenter.NCTalkerService;
 import com.matejdro.pebblenotificationcenter.PebbleNotification;
 import com.matejdro.pebblenotificationcenter.lists.ActiveNotificationsAdapter;
 import com.matejdro.pebblenotificationcenter.lists.NotificationHistoryAdapter;
 import com.matejdro.pebblenotificationcenter.lists.NotificationListAdapter;
+import com.matejdro.pebblenotificationcenter.pebble.AppMessageBuilder;
+import com.matejdro.pebblenotificationcenter.pebble.PebbleTextEncoder;
+import com.matejdro.pebblenotificationcenter.util.TextReplacer;
 
 import java.text.DateFormat;
+import java.util.BitSet;
 import java.util.Date;
 
 import timber.log.Timber;
@@ -30,6 +33,11 @@ public class ListModule extends CommModule
 {
     public static final int MODULE_LIST = 2;
 
+    //Entries in packed list data packet use same keys as single entry packet, shifted by this offset for every entry
+    private static final int PACKED_ENTRY_KEY_BASE = 100;
+    private static final int PACKED_ENTRY_KEY_STRIDE = 10;
+
+
     private NotificationListAdapter listAdapter;
 
     private int sendNotification = -1;
@@ -38,6 +46,14 @@ public class ListModule extends CommModule
     private int nextListItemToSend = 0;
     private boolean openListWindow = false;
 
+    private int watchCacheSize = 0;
+    private int nextEntryToPrefetch = -1;
+    private int prefetchDirection = 1;
+    private int entriesLeftToPrefetch = 0;
+    private final BitSet prefetchedEntries = new BitSet();
+    //Entry that was already built, but did not fit into the previous prefetch packet
+    private ListEntry pendingPrefetchEntry;
+
     public ListModule(PebbleTalkerService service)
     {
         super(service);
@@ -62,15 +78,20 @@ public class ListModule extends CommModule
             }
         }
 
-        if (nextListItemToSend < 0)
-            return false;
+        if (nextListItemToSend >= 0)
+        {
+            sendListItem(nextListItemToSend);
 
-        sendListItem(nextListItemToSend);
+            nextListItemToSend = -1;
+            openListWindow = false;
 
-        nextListItemToSend = -1;
-        openListWindow = false;
+            return true;
+        }
 
-        return true;
+        if (entriesLeftToPrefetch > 0)
+            return sendPrefetchedEntries();
+
+        return false;
     }
 
     public void gotMessageListItemRequest(PebbleDictionary data)
@@ -80,7 +101,24 @@ public class ListModule extends CommModule
 
         boolean forceListRefresh = data.getUnsignedIntegerAsLong(3).intValue() == 1;
         if (forceListRefresh && listAdapter != null)
+        {
             listAdapter.forceRefresh();
+            prefetchedEntries.clear();
+            pendingPrefetchEntry = null;
+        }
+
+        //Watch requested this entry, so it does not have it in its cache anymore
+        prefetchedEntries.clear(id);
+
+        //Older watchapps do not advertise their cache and only receive entries they request
+        Long cacheSize = data.getUnsignedIntegerAsLong(4);
+        watchCacheSize = cacheSize == null ? 0 : cacheSize.intValue();
+
+        Long direction = data.getInteger(5);
+        prefetchDirection = direction != null && direction < 0 ? -1 : 1;
+
+        nextEntryToPrefetch = id + prefetchDirection;
+        entriesLeftToPrefetch = watchCacheSize;
 
         PebbleCommunication communication = getService().getPebbleCommunication();
         communication.queueModulePriority(this);
@@ -95,6 +133,9 @@ public class ListModule extends CommModule
 
         sendNotification = id;
 
+        //User left the list, entries will be requested again on return
+        entriesLeftToPrefetch = 0;
+
         PebbleCommunication communication = getService().getPebbleCommunication();
         communication.queueModulePriority(this);
         communication.sendNext();
@@ -125,47 +166,145 @@ public class ListModule extends CommModule
 
     public void sendListItem(int index)
     {
-        PebbleDictionary data = new PebbleDictionary();
+        AppMessageBuilder data = new AppMessageBuilder(2, 0);
 
         if (index >= listAdapter.getNumOfNotifications())
         {
-            data.addUint8(0, (byte) 2);
-            data.addUint8(1, (byte) 0);
-            data.addUint16(2, (short) 0);
-            data.addUint16(3, (short) 1);
-            data.addUint8(4, (byte) 1);
+            data.addUint16(2, 0);
+            data.addUint16(3, 1);
+            data.addUint8(4, 1);
             data.addString(5, "No notifications");
             data.addString(6, "");
             data.addString(7, "");
-            data.addUint16(8, (short) 0);
+            data.addUint16(8, 0);
 
             if (openListWindow)
-                data.addUint8(999, (byte) 1);
+                data.switchToModule();
 
-            getService().getPebbleCommunication().sendToPebble(data);
+            data.send(getService());
 
             return;
         }
 
-        PebbleNotification notification = listAdapter.getNotificationAt(index);
-
-        data.addUint8(0, (byte) 2);
-        data.addUint8(1, (byte) 0);
-        data.addUint16(2, (short) index);
-        data.addUint16(3, (short) listAdapter.getNumOfNotifications());
-        data.addUint8(4, (byte) (notification.isDismissable() ? 0 : 1));
-        data.addString(5, TextUtil.prepareString(notification.getTitle()));
-        data.addString(6, TextUtil.prepareString(notification.getSubtitle()));
-        data.addString(7, getFormattedDate(getService(), notification.getRawPostTime()));
-        data.addUint16(8, (short) 0); // Placeholder
+        data.addUint16(3, listAdapter.getNumOfNotifications());
 
         if (openListWindow)
-            data.addUint8(999, (byte) 1);
+            data.switchToModule();
+
+        PebbleCapabilities connectedWatchCapabilities = getService().getPebbleCommunication().getConnectedWatchCapabilities();
+        ListEntry entry = createListEntry(index, connectedWatchCapabilities, true);
+
+        byte[] iconData = entry.iconData;
+        entry.iconData = null;
+        entry.addTo(data, 0);
+
+        if (iconData != null && canSendIcon(data.getBytesLeft(connectedWatchCapabilities), iconData.length))
+        {
+            data.addUint16(8, iconData.length);
+            data.addBytes(9, iconData);
+        }
+
+        Timber.i("Sending list entry %d %s", index, entry.title);
+
+        data.send(getService());
+    }
+
+    /**
+     * Send as many of the entries following the last requested one as fit into one packet.
+     *
+     * @return {@code true} if packet was sent.
+     */
+    private boolean sendPrefetchedEntries()
+    {
+        PebbleCapabilities connectedWatchCapabilities = getService().getPebbleCommunication().getConnectedWatchCapabilities();
+        boolean iconsSupported = connectedWatchCapabilities.getMaxAppmessageSize() >= 2048;
+
+        AppMessageBuilder data = new AppMessageBuilder(2, 1);
+        data.addUint8(2, 0);
+        data.addUint16(3, listAdapter.getNumOfNotifications());
+
+        int packedEntries = 0;
+        while (entriesLeftToPrefetch > 0)
+        {
+            int index = nextEntryToPrefetch;
+            if (index < 0 || index >= listAdapter.getNumOfNotifications())
+            {
+                entriesLeftToPrefetch = 0;
+                break;
+            }
+
+            if (!prefetchedEntries.get(index))
+            {
+                ListEntry entry;
+                if (pendingPrefetchEntry != null && pendingPrefetchEntry.index == index)
+                    entry = pendingPrefetchEntry;
+                else
+                    entry = createListEntry(index, connectedWatchCapabilities, iconsSupported);
+                pendingPrefetchEntry = null;
+
+                byte[] iconData = entry.iconData;
+                entry.iconData = null;
+                if (iconData != null && canSendIcon(data.getBytesLeft(connectedWatchCapabilities) - entry.getSize(), iconData.length))
+                    entry.iconData = iconData;
+
+                if (data.getSize() + entry.getSize() > connectedWatchCapabilities.getMaxAppmessageSize())
+                {
+                    //Entry goes into the next packet. Only entry that cannot fit even on its own is sent without icon.
+                    if (packedEntries > 0)
+                    {
+                        entry.iconData = iconData;
+                        pendingPrefetchEntry = entry;
+                        break;
+                    }
+
+                    entry.iconData = null;
+                }
+
+                entry.addTo(data, PACKED_ENTRY_KEY_BASE + packedEntries * PACKED_ENTRY_KEY_STRIDE);
+                prefetchedEntries.set(index);
+                packedEntries++;
+            }
+
+            nextEntryToPrefetch += prefetchDirection;
+            entriesLeftToPrefetch--;
+        }
 
-        Bitmap icon = notification.getNotificationIcon();
+        if (packedEntries == 0)
+            return false;
+
+        data.addUint8(2, packedEntries);
+
+        Timber.d("Prefetching %d list entries", packedEntries);
+        data.send(getService());
+
+        return true;
+    }
+
+    /**
+     * This feature requires lots of memory on the watch to contain lots of icons for every list item.
+     * To weed out low memory devices, a device must be able to afford to receive at least 2048 bytes of the appmessage.
+     *
+     * @param bytesLeft Bytes left in the appmessage after the entry without its icon was added.
+     */
+    private static boolean canSendIcon(int bytesLeft, int iconLength)
+    {
+        return bytesLeft >= Math.max(2048, iconLength);
+    }
+
+    private ListEntry createListEntry(int index, PebbleCapabilities connectedWatchCapabilities, boolean includeIcon)
+    {
+        PebbleNotification notification = listAdapter.getNotificationAt(index);
+
+        ListEntry entry = new ListEntry();
+        entry.index = index;
+        entry.ongoing = !notification.isDismissable();
+        entry.title = TextReplacer.prepareString(notification.getTitle());
+        entry.subtitle = TextReplacer.prepareString(notification.getSubtitle());
+        entry.date = getFormattedDate(getService(), notification.getRawPostTime());
+
+        Bitmap icon = includeIcon ? notification.getNotificationIcon() : null;
         if (icon != null)
         {
-            PebbleCapabilities connectedWatchCapabilities = getService().getPebbleCommunication().getConnectedWatchCapabilities();
             int iconColor = Color.BLACK;
             int notificationColor = notification.getColor();
 
@@ -176,22 +315,11 @@ public class ListModule extends CommModule
                 if (PebbleImageToolkit.getLuminance(iconColor) > 255 * 3 / 2)
                     iconColor = PebbleImageToolkit.multiplyBrightness(iconColor, 0.5f);
             }
-            byte[] iconData = ImageSendingModule.prepareTintedIcon(icon, getService(), connectedWatchCapabilities, iconColor, false);
-
-            // This feature requires lots of memory on the watch to contain lots of icons for every list item
-            // To weed out low memory devices, a device must be able to afford to receive at least 2048 bytes of the appmessage.
-            int minAppmessageBufferSize = Math.max(2048, iconData.length);
-
-            if (PebbleUtil.getBytesLeft(data, connectedWatchCapabilities) >= minAppmessageBufferSize)
-            {
-                data.addUint16(8, (short) iconData.length); // Placeholder
-                data.addBytes(9, iconData);
-            }
+            entry.iconData = ImageSendingModule.prepareTintedIcon(icon, getService(), connectedWatchCapabilities.hasColorScreen(), iconColor, false);
+            notification.releaseImages();
         }
 
-        Timber.i("Sending list entry %d %s", index, data.getString(5));
-
-        getService().getPebbleCommunication().sendToPebble(data);
+        return entry;
     }
 
     public static String getFormattedDate(Context context, long date)
@@ -244,6 +372,10 @@ public class ListModule extends CommModule
         nextListItemToSend = 0;
         openListWindow = true;
 
+        entriesLeftToPrefetch = 0;
+        prefetchedEntries.clear();
+        pendingPrefetchEntry = null;
+
         PebbleCommunication communication = getService().getPebbleCommunication();
         communication.queueModulePriority(this);
         communication.sendNext();
@@ -253,4 +385,54 @@ public class ListModule extends CommModule
     {
         return (ListModule) service.getModule(MODULE_LIST);
     }
+
+    private static class ListEntry
+    {
+        private int index;
+        private boolean ongoing;
+        private String title;
+        private String subtitle;
+        private String date;
+        private byte[] iconData;
+
+        /**
+         * @return Number of bytes this entry takes in the dictionary.
+         */
+        private int getSize()
+        {
+            int size = 6 * AppMessageBuilder.ENTRY_HEADER_SIZE + 2 + 1 + getStringSize(title) + getStringSize(subtitle) + getStringSize(date) + 2;
+            if (iconData != null)
+                size += AppMessageBuilder.ENTRY_HEADER_SIZE + iconData.length;
+
+            return size;
+        }
+
+        /**
+         * Add entry using keys of the single entry packet, shifted by keyOffset.
+         */
+        private void addTo(AppMessageBuilder data, int keyOffset)
+        {
+            data.addUint16(keyOffset + 2, index);
+            data.addUint8(keyOffset + 4, ongoing ? 1 : 0);
+            data.addString(keyOffset + 5, title);
+            data.addString(keyOffset + 6, subtitle);
+            data.addString(keyOffset + 7, date);
+
+            if (iconData == null)
+            {
+                data.addUint16(keyOffset + 8, 0);
+            }
+            else
+            {
+                data.addUint16(keyOffset + 8, iconData.length);
+                data.addBytes(keyOffset + 9, iconData);
+            }
+        }
+
+        private static int getStringSize(String text)
+        {
+            //Strings are sent as null-terminated UTF-8
+            return PebbleTextEncoder.getEncodedLength(text) + 1;
+        }
+    }
 }
@@ -0,0 +1,176 @@
+package com.matejdro.pebblenotificationcenter.pebble.modules;
+
+import com.matejdro.pebblecommons.pebble.PebbleTalkerService;
+import com.matejdro.pebblenotificationcenter.PebbleNotification;
+import com.matejdro.pebblenotificationcenter.ProcessedNotification;
+import com.matejdro.pebblenotificationcenter.pebble.NotificationCenterDeveloperConnection;
+
+import java.util.TreeMap;
+
+import timber.log.Timber;
+
+/**
+ * Staged notification processing: ingest -> filter -> render -> enqueue-for-watch.
+ *
+ * Filtering and rendering (text chunking, icon and image dithering) run on worker pools with bounded queues,
+ * so Pebble thread only ingests notifications and enqueues finished ones for sending.
+ * Notifications always reach the enqueue stage in the same order as they were ingested.
+ *
+ * Filter stage is fed from Pebble thread, so its queue is unbounded and it never throttles Pebble thread.
+ * Notification bursts are already limited before they reach the pipeline by {@link com.matejdro.pebblenotificationcenter.notifications.NotificationIngestQueue}.
+ * Render stage is bounded and throttles filter stage instead.
+ */
+public class NotificationPipeline
+{
+    private static final int FILTER_STAGE_THREADS = 1;
+    private static final int RENDER_STAGE_THREADS = 2;
+    private static final int STAGE_QUEUE_CAPACITY = 16;
+
+    private final PebbleTalkerService service;
+    private final NotificationSendingModule sendingModule;
+
+    private final ProcessingStage filterStage;
+    private final ProcessingStage renderStage;
+
+    //Following fields must only be accessed from Pebble thread
+    private long nextIngestSequence = 0;
+    private long nextEnqueueSequence = 0;
+    private TreeMap<Long, PipelineEntry> finishedEntries = new TreeMap<>();
+
+    public NotificationPipeline(PebbleTalkerService service, NotificationSendingModule sendingModule)
+    {
+        this.service = service;
+        this.sendingModule = sendingModule;
+
+        filterStage = new ProcessingStage("Filter", FILTER_STAGE_THREADS, ProcessingStage.UNBOUNDED_QUEUE);
+        renderStage = new ProcessingStage("Render", RENDER_STAGE_THREADS, STAGE_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Must be called from Pebble thread.
+     */
+    public void ingest(PebbleNotification notificationSource)
+    {
+        ProcessedNotification notification = new ProcessedNotification();
+        notification.source = notificationSource;
+
+        final PipelineEntry entry = new PipelineEntry(nextIngestSequence++, notification);
+        Timber.d("Ingested notification %d", entry.sequence);
+
+        filterStage.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                filter(entry);
+            }
+        });
+    }
+
+    private void filter(final PipelineEntry entry)
+    {
+        try
+        {
+            entry.filteringResult = sendingModule.prepareAndFilterNotification(entry.notification.source);
+        }
+        catch (RuntimeException e)
+        {
+            Timber.e(e, "Notification filtering failed!");
+            entry.filteringResult = NotificationSendingModule.FilteringResult.IGNORE;
+        }
+
+        if (entry.filteringResult != NotificationSendingModule.FilteringResult.SEND)
+        {
+            finish(entry);
+            return;
+        }
+
+        renderStage.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                render(entry);
+            }
+        });
+    }
+
+    private void render(PipelineEntry entry)
+    {
+        try
+        {
+            sendingModule.renderNotification(entry.notification);
+        }
+        catch (RuntimeException e)
+        {
+            //Payload will be rendered again on the sending path if needed
+            Timber.e(e, "Notification rendering failed!");
+        }
+
+        finish(entry);
+    }
+
+    private void finish(final PipelineEntry entry)
+    {
+        service.runOnPebbleThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                finishedEntries.put(entry.sequence, entry);
+                drainFinishedEntries();
+            }
+        });
+    }
+
+    private void drainFinishedEntries()
+    {
+        //Native notifications that are enqueued together are sent to the watch in one message
+        NotificationCenterDeveloperConnection developerConnection = NotificationCenterDeveloperConnection.fromDevConn(service.getDeveloperConnection());
+        if (developerConnection != null)
+            developerConnection.beginBatch();
+
+        try
+        {
+            while (!finishedEntries.isEmpty() && finishedEntries.firstKey() == nextEnqueueSequence)
+            {
+                PipelineEntry entry = finishedEntries.pollFirstEntry().getValue();
+                nextEnqueueSequence++;
+
+                sendingModule.enqueueNotification(entry.notification, entry.filteringResult);
+            }
+        }
+        finally
+        {
+            if (developerConnection != null)
+                developerConnection.endBatch();
+        }
+    }
+
+    public void shutdown()
+    {
+        filterStage.shutdown();
+        renderStage.shutdown();
+    }
+
+    public void logStatistics()
+    {
+        for (ProcessingStage stage : new ProcessingStage[] { filterStage, renderStage })
+        {
+            Timber.d("Stage %s: queued %d processed %d throttled %d", stage.getName(), stage.getQueueSize(), stage.getProcessedTasks(), stage.getThrottledTasks());
+        }
+    }
+
+    private static class PipelineEntry
+    {
+        private final long sequence;
+        private final ProcessedNotification notification;
+        private volatile NotificationSendingModule.FilteringResult filteringResult;
+
+        private PipelineEntry(long sequence, ProcessedNotification notification)
+        {
+            this.sequence = sequence;
+            this.notification = notification;
+        }
+    }
+}
@@ -1,11 +1,10 @@
 package com.matejdro.pebblenotificationcenter.pebble.modules;
 
 import android.content.Context;
-import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.media.AudioManager;
-import android.util.SparseArray;
+import android.support.annotation.Nullable;
 
 import com.getpebble.android.kit.PebbleKit;
 import com.getpebble.android.kit.util.PebbleDictionary;
@@ -17,13 +16,15 @@ import com.matejdro.pebblecommons.pebble.PebbleTalkerService;
 import com.matejdro.pebblecommons.pebble.PebbleUtil;
 import com.matejdro.pebblecommons.util.DeviceUtil;
 import com.matejdro.pebblecommons.util.TextUtil;
-import com.matejdro.pebblecommons.vibration.PebbleVibrationPattern;
 import com.matejdro.pebblenotificationcenter.GeneralNCDatabase;
 import com.matejdro.pebblenotificationcenter.NCTalkerService;
 import com.matejdro.pebblenotificationcenter.PebbleNotification;
 import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
 import com.matejdro.pebblenotificationcenter.ProcessedNotification;
 import com.matejdro.pebblenotificationcenter.R;
+import com.matejdro.pebblenotificationcenter.SentNotificationRegistry;
+import com.matejdro.pebblenotificationcenter.ServiceHandoff;
+import com.matejdro.pebblenotificationcenter.appsetting.AppRegexFilter;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSetting;
 import com.matejdro.pebblenotificationcenter.appsetting.AppSettingStorage;
 import com.matejdro.pebblenotificationcenter.appsetting.PebbleAppNotificationMode;
@@ -31,20 +32,25 @@ import com.matejdro.pebblenotificationcenter.notifications.JellybeanNotification
 import com.matejdro.pebblenotificationcenter.notifications.actions.DismissOnPebbleAction;
 import com.matejdro.pebblenotificationcenter.notifications.actions.NotificationAction;
 import com.matejdro.pebblenotificationcenter.notifications.actions.ReplaceNotificationAction;
+import com.matejdro.pebblenotificationcenter.pebble.AppMessageBuilder;
+import com.matejdro.pebblenotificationcenter.pebble.ImageRenderCache;
 import com.matejdro.pebblenotificationcenter.pebble.NativeNotificationIcon;
 import com.matejdro.pebblenotificationcenter.pebble.NotificationCenterDeveloperConnection;
+import com.matejdro.pebblenotificationcenter.pebble.PebbleTextEncoder;
+import com.matejdro.pebblenotificationcenter.pebble.VibrationPatterns;
+import com.matejdro.pebblenotificationcenter.pebble.WatchappHandler;
+import com.matejdro.pebblenotificationcenter.util.TextReplacer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Queue;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import timber.log.Timber;
 
@@ -54,42 +60,45 @@ import timber.log.Timber;
 public class NotificationSendingModule extends CommModule
 {
     public static final int MODULE_NOTIFICATION_SENDING = 1;
-    public static final String INTENT_NOTIFICATION = "Notification";
-    public static final String INTENT_MUTE_APP_TEMPORARILY = "MuteAppTemporarily";
-    public static final String INTENT_CLEAR_TEMPORARY_MUTES = "ClearTemporaryMutes";
 
     public static final int DEFAULT_TEXT_LIMIT = 2000;
 
-    private static Queue<PebbleNotification> processingQueue = new ConcurrentLinkedQueue<>();
+    private static final int LEGACY_TEXT_CHUNK_SIZE = 100;
+    private static final int MAX_TEXT_CHUNK_SIZE = 512;
+    private static final int MAX_TEXT_CHUNKS_PER_PACKET = 8;
 
     private HashMap<String, Long> lastAppVibration = new HashMap<String, Long>();
     private HashMap<String, Long> lastAppNotification = new HashMap<String, Long>();
     private HashMap<String, Long> temporaryMutes = new HashMap<String, Long>();
     private ProcessedNotification curSendingNotification;
     private Queue<ProcessedNotification> sendingQueue = new LinkedList<>();
+    private NotificationPipeline pipeline;
+
+    private int coalescedTransfers = 0;
+    private long coalescedBytes = 0;
 
     public NotificationSendingModule(PebbleTalkerService service)
     {
         super(service);
-        service.registerIntent(INTENT_NOTIFICATION, this);
-        service.registerIntent(INTENT_MUTE_APP_TEMPORARILY, this);
-        service.registerIntent(INTENT_CLEAR_TEMPORARY_MUTES, this);
+        pipeline = new NotificationPipeline(service, this);
     }
 
+    /**
+     * Filtering that only depends on the notification and settings. Called from the pipeline worker thread.
+     */
     private FilteringResult shouldFilterNotification(PebbleNotification notificationSource)
     {
         AppSettingStorage settingStorage = notificationSource.getSettingStorage(getService());
 
+        AppRegexFilter regexFilter = AppRegexFilter.get(settingStorage);
         String combinedText = notificationSource.getTitle() + "\n" + notificationSource.getSubtitle() + "\n" + notificationSource.getText();
-        List<String> regexList = settingStorage.getStringList(AppSetting.INCLUDED_REGEX);
-        if (regexList.size() > 0 && !TextUtil.containsRegexes(combinedText, regexList))
+        if (!regexFilter.matchesIncluded(combinedText))
         {
             Timber.d("notify failed - whitelist regex");
             return FilteringResult.ONLY_KEEP_TEMPORARY;
         }
 
-        regexList = settingStorage.getStringList(AppSetting.EXCLUDED_REGEX);
-        if (TextUtil.containsRegexes(combinedText, regexList))
+        if (regexFilter.matchesExcluded(combinedText))
         {
             Timber.d("notify failed - blacklist regex");
             return FilteringResult.ONLY_KEEP_TEMPORARY;
@@ -161,6 +170,16 @@ public class NotificationSendingModule extends CommModule
             return FilteringResult.ONLY_SAVE_TO_HISTORY;
         }
 
+        return FilteringResult.SEND;
+    }
+
+    /**
+     * Filtering that depends on the notifications that were already sent. Must be called from Pebble thread.
+     */
+    private FilteringResult shouldFilterSentNotification(PebbleNotification notificationSource)
+    {
+        AppSettingStorage settingStorage = notificationSource.getSettingStorage(getService());
+
         int minNotificationInterval = 0;
         try
         {
@@ -207,8 +226,14 @@ public class NotificationSendingModule extends CommModule
     {
         Timber.d("notify internal");
 
-        ProcessedNotification notification = new ProcessedNotification();
-        notification.source = notificationSource;
+        pipeline.ingest(notificationSource);
+    }
+
+    /**
+     * Filter stage of the {@link NotificationPipeline}. Called from the pipeline worker thread.
+     */
+    FilteringResult prepareAndFilterNotification(PebbleNotification notificationSource)
+    {
         AppSettingStorage settingStorage = notificationSource.getSettingStorage(getService());
 
         String customTitle = settingStorage.getString(AppSetting.CUSTOM_TITLE);
@@ -249,11 +274,53 @@ public class NotificationSendingModule extends CommModule
         if (notificationSource.getTitle().trim().equals(notificationSource.getSubtitle().trim()))
             notificationSource.setSubtitle("");
 
+        int colorFromConfig = settingStorage.getInt(AppSetting.STATUSBAR_COLOR);
+        if (Color.alpha(colorFromConfig) != 0)
+            notificationSource.setColor(colorFromConfig);
+
+        NativeNotificationIcon iconFromConfig = settingStorage.getEnum(AppSetting.NATIVE_NOTIFICATION_ICON);
+        if (iconFromConfig != NativeNotificationIcon.AUTOMATIC)
+            notificationSource.setNativeNotificationIcon(iconFromConfig);
+
+        if (notificationSource.isListNotification())
+            return FilteringResult.SEND;
+
+        return shouldFilterNotification(notificationSource);
+    }
+
+    /**
+     * Render stage of the {@link NotificationPipeline}. Prepares watch-ready payload so sending path
+     * only needs to stream bytes. Called from the pipeline worker thread, possibly before any watch is connected.
+     */
+    void renderNotification(ProcessedNotification notification)
+    {
+        renderText(notification);
+
+        //Native notifications do not carry images. If routing changes until sending, images are rendered on the sending path.
+        if (!isLikelySentAsNative(notification.source))
+            renderImages(notification, getService().getPebbleCommunication().getConnectedWatchCapabilities());
+    }
+
+    private boolean isLikelySentAsNative(PebbleNotification notificationSource)
+    {
+        if (notificationSource.isListNotification() || !getService().getDeveloperConnection().isOpen())
+            return false;
 
+        UUID currentApp = SystemModule.get(getService()).getCurrentRunningApp();
+        return GeneralNCDatabase.getInstance().getPebbleAppNotificationMode(currentApp) == PebbleAppNotificationMode.SHOW_NATIVE_NOTIFICATION;
+    }
 
-        FilteringResult filteringResult = FilteringResult.SEND;
-        if (!notificationSource.isListNotification())
-            filteringResult = shouldFilterNotification(notificationSource);
+    /**
+     * Enqueue stage of the {@link NotificationPipeline}. Notifications arrive here in the same order they were ingested.
+     * Must be called from Pebble thread.
+     */
+    void enqueueNotification(final ProcessedNotification notification, FilteringResult filteringResult)
+    {
+        final PebbleNotification notificationSource = notification.source;
+        AppSettingStorage settingStorage = notificationSource.getSettingStorage(getService());
+
+        if (filteringResult == FilteringResult.SEND && !notificationSource.isListNotification())
+            filteringResult = shouldFilterSentNotification(notificationSource);
 
         if ((filteringResult == FilteringResult.SEND || filteringResult == FilteringResult.ONLY_SAVE_TO_HISTORY) &&
                 !notificationSource.isHistoryDisabled() && !notificationSource.isListNotification() &&
@@ -263,22 +330,16 @@ public class NotificationSendingModule extends CommModule
                     TextUtil.trimString(notificationSource.getTitle(), 4000, true),
                     TextUtil.trimString(notificationSource.getSubtitle(), 4000, true),
                     TextUtil.trimString(notificationSource.getText(), 4000, true),
-                    notificationSource.getNotificationIcon());
+                    notificationSource.getLazyNotificationIcon());
         }
 
+        //Images were already rendered into watch payload, so extracted bitmaps do not need to stay in memory
+        notificationSource.releaseImages();
 
         if (filteringResult != FilteringResult.SEND && filteringResult != FilteringResult.ONLY_KEEP_TEMPORARY)
             return;
 
-        int colorFromConfig = settingStorage.getInt(AppSetting.STATUSBAR_COLOR);
-        if (Color.alpha(colorFromConfig) != 0)
-            notificationSource.setColor(colorFromConfig);
-
-        NativeNotificationIcon iconFromConfig = settingStorage.getEnum(AppSetting.NATIVE_NOTIFICATION_ICON);
-        if (iconFromConfig != NativeNotificationIcon.AUTOMATIC)
-            notificationSource.setNativeNotificationIcon(iconFromConfig);
-
-        SparseArray<ProcessedNotification> sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
+        SentNotificationRegistry sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
 
         Random rnd = new Random();
         do
@@ -287,14 +348,15 @@ public class NotificationSendingModule extends CommModule
             //(only 0 = BT disconnected notification used for now)
             notification.id = rnd.nextInt(Integer.MAX_VALUE - 10) + 10;
         }
-        while (sentNotifications.get(notification.id) != null);
+        while (sentNotifications.contains(notification.id));
 
         if (filteringResult == FilteringResult.ONLY_KEEP_TEMPORARY)
         {
             // Sometimes notifications should be filtered out to not be displayed on the pebble,
             // but they need to be keep in as if they were sent to prevent other wear group notifications
-            // on replacing them
-            sentNotifications.put(notification.id, notification);
+            // on replacing them. Images of such notification are never needed.
+            notificationSource.dropImages();
+            sentNotifications.put(notification);
             return;
         }
 
@@ -314,8 +376,6 @@ public class NotificationSendingModule extends CommModule
             sendNotificationAsPrivate(notification);
         else
             sendNotification(notification);
-
-        NCTalkerService.fromPebbleTalkerService(getService()).getHistoryDatabase().tryCleanDatabase();
     }
 
     private void notificationTransferCompleted()
@@ -324,9 +384,29 @@ public class NotificationSendingModule extends CommModule
             lastAppVibration.put(curSendingNotification.source.getKey().getPackage(), System.currentTimeMillis());
         lastAppNotification.put(curSendingNotification.source.getKey().getPackage(), System.currentTimeMillis());
 
+        //Text is cheap to render again, so only images (that watch may still request) are kept after delivery
+        curSendingNotification.delivered = true;
+        curSendingNotification.textData = null;
+        curSendingNotification.source.releaseImages();
+        NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications.onPayloadChanged(curSendingNotification);
+
         curSendingNotification = null;
     }
 
+    /**
+     * Render images again if they were never rendered, were rendered for different watch or were dropped after delivery.
+     */
+    void ensureImagesRendered(ProcessedNotification notification)
+    {
+        PebbleCapabilities watchCapabilities = getService().getPebbleCommunication().getConnectedWatchCapabilities();
+        if (notification.imagesRendered && (notification.imagesRenderedForColorScreen || (watchCapabilities != null && !watchCapabilities.hasColorScreen())))
+            return;
+
+        renderImages(notification, watchCapabilities);
+        notification.source.releaseImages();
+        NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications.onPayloadChanged(notification);
+    }
+
     private void sendNotificationAsPrivate(ProcessedNotification notification)
     {
         PebbleNotification coverNotification = new PebbleNotification(notification.source.getTitle(), "Use Show action to uncover it.", notification.source.getKey());
@@ -346,7 +426,7 @@ public class NotificationSendingModule extends CommModule
 
     public void sendNotification(ProcessedNotification notification)
     {
-        NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications.put(notification.id, notification);
+        NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications.put(notification);
 
         int pebbleAppMode = PebbleAppNotificationMode.OPEN_IN_NOTIFICATION_CENTER;
         if (!notification.source.isListNotification())
@@ -356,7 +436,7 @@ public class NotificationSendingModule extends CommModule
             systemModule.updateCurrentlyRunningApp();
 
             UUID currentApp = systemModule.getCurrentRunningApp();
-            Timber.d("Current app: ", currentApp);
+            Timber.d("Current app: %s", currentApp);
             pebbleAppMode = GeneralNCDatabase.getInstance().getPebbleAppNotificationMode(currentApp);
         }
 
@@ -365,6 +445,8 @@ public class NotificationSendingModule extends CommModule
             // Fallback to NC mode when developer connection is not available. Also notify user about the problem.
 
             notification.source.setText(notification.source.getText() + getService().getString(R.string.native_to_nc_fallback_notice));
+            //Text was already rendered by the pipeline. Render it again so notice is displayed.
+            notification.textData = null;
             pebbleAppMode = PebbleAppNotificationMode.OPEN_IN_NOTIFICATION_CENTER;
         }
 
@@ -415,52 +497,107 @@ public class NotificationSendingModule extends CommModule
 
         notification.nativeNotification = false;
 
-        //Split text into chunks
-        int textLimit = getMaximumTextLength(notification.source.getSettingStorage(getService()));
-        String mergedText = notification.source.getTitle() + "\0" + notification.source.getSubtitle() + "\0" + notification.source.getText();
-        mergedText = TextUtil.prepareString(mergedText, textLimit);
+        //Request watchapp first, so any missing payload is rendered while watch is launching the app
+        SystemModule.get(getService()).openApp();
 
-        byte[] textBytes = mergedText.getBytes();
-        notification.textLength = (short) textBytes.length;
+        //Notifications that bypassed the pipeline (such as replaced ones) or had their payload dropped might not be rendered yet
+        if (notification.textData == null)
+            renderText(notification);
+        ensureImagesRendered(notification);
 
-        boolean lookingForSubtitleIndex = true;
-        for (int i = 0; i < textBytes.length; i++)
-        {
-            if (textBytes[i] == 0)
-            {
-                if (lookingForSubtitleIndex)
-                {
-                    notification.firstSubtitleIndex = (short) (i + 1);
-                    lookingForSubtitleIndex = false;
-                }
-                else
-                {
-                    notification.firstTextIndex = (short) (i + 1);
-                    break;
-                }
-            }
-        }
+        Timber.d("BeginSend %d %s %s %d", notification.id, notification.source.getTitle(), notification.source.getSubtitle(), notification.textData.length);
+
+        if (!notification.source.isListNotification() && getService().getGlobalSettings().getBoolean(PebbleNotificationCenter.COALESCE_NOTIFICATION_BURSTS, false))
+            coalesceSendingQueue(notification);
+
+        sendingQueue.add(notification);
+
+        PebbleCommunication communication = getService().getPebbleCommunication();
+        communication.queueModulePriority(this);
+        communication.sendNext();
+    }
+
+    /**
+     * Remove queued notifications that would be immediately replaced by the new notification
+     * (updates of the same notification or messages from the same wear group) before their initial packet goes out.
+     */
+    private void coalesceSendingQueue(ProcessedNotification newNotification)
+    {
+        SentNotificationRegistry sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
 
-        int i = 0;
-        while (i < textBytes.length)
+        Iterator<ProcessedNotification> iterator = sendingQueue.iterator();
+        while (iterator.hasNext())
         {
-            byte[] chunk = new byte[100];
-            int size = Math.min(100, textBytes.length - i);
-            System.arraycopy(textBytes, i, chunk, 0, size);
-            notification.textChunks.add(chunk);
+            ProcessedNotification queued = iterator.next();
+            if (queued.waitingForConfirmation || queued.source.isListNotification())
+                continue;
+
+            //Messages of the same group are separate messages. They can only be skipped when new notification is group summary that contains them.
+            boolean replacedBySummary = newNotification.source.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_GROUP_SUMMARY && queued.source.isInSameGroup(newNotification.source);
+            if (!queued.source.isSameNotification(newNotification.source.getKey()) && !replacedBySummary)
+                continue;
+
+            iterator.remove();
+            sentNotifications.remove(queued.id);
+
+            //Coalesced notification never reached the watch. Inherit its predecessor so update vibration rules still apply.
+            if (newNotification.prevId == queued.id || newNotification.prevId == 0)
+                newNotification.prevId = queued.prevId;
 
-            i+= size;
+            int savedBytes = queued.textLength;
+            byte[] iconData = queued.getIconData(hasColorScreen());
+            if (iconData != null)
+                savedBytes += iconData.length;
+            if (queued.backgroundImageData != null)
+                savedBytes += queued.backgroundImageData.length;
+
+            coalescedTransfers++;
+            coalescedBytes += savedBytes;
+
+            Timber.d("Coalesced notification %d into %d (%d bytes saved)", queued.id, newNotification.id, savedBytes);
         }
+    }
 
-        Timber.d("BeginSend %d %s %s %d", notification.id, notification.source.getTitle(), notification.source.getSubtitle(), notification.textChunks.size());
+    private void renderText(ProcessedNotification notification)
+    {
+        int textLimit = getMaximumTextLength(notification.source.getSettingStorage(getService()));
+        String mergedText = notification.source.getTitle() + "\0" + notification.source.getSubtitle() + "\0" + notification.source.getText();
+        mergedText = TextReplacer.prepareString(mergedText, textLimit);
 
-        SystemModule.get(getService()).openApp();
+        short[] separatorOffsets = new short[] { Short.MAX_VALUE, Short.MAX_VALUE };
+        byte[] textBytes = PebbleTextEncoder.get().encodeSeparated(mergedText, separatorOffsets);
 
-        sendingQueue.add(notification);
+        notification.textLength = (short) textBytes.length;
+        notification.firstSubtitleIndex = separatorOffsets[0];
+        notification.firstTextIndex = separatorOffsets[1];
+        notification.textData = textBytes;
+    }
 
-        PebbleCommunication communication = getService().getPebbleCommunication();
-        communication.queueModulePriority(this);
-        communication.sendNext();
+    /**
+     * Render images for both screen types, since watch might not be connected yet or might be replaced before notification is sent.
+     * Background image is skipped when connected watch cannot display it.
+     */
+    private void renderImages(ProcessedNotification notification, @Nullable PebbleCapabilities watchCapabilities)
+    {
+        boolean renderForColorScreen = watchCapabilities == null || watchCapabilities.hasColorScreen();
+        if (renderForColorScreen)
+            notification.backgroundImageData = ImageSendingModule.prepareImage(notification.source.getBigNotificationImage());
+
+        Bitmap icon = notification.source.getNotificationIcon();
+        if (icon != null)
+        {
+            notification.colorIconData = ImageSendingModule.prepareIcon(icon, getService(), true);
+            notification.blackWhiteIconData = ImageSendingModule.prepareIcon(icon, getService(), false);
+        }
+
+        notification.imagesRenderedForColorScreen = renderForColorScreen;
+        notification.imagesRendered = true;
+    }
+
+    private boolean hasColorScreen()
+    {
+        PebbleCapabilities watchCapabilities = getService().getPebbleCommunication().getConnectedWatchCapabilities();
+        return watchCapabilities != null && watchCapabilities.hasColorScreen();
     }
 
     private void sendInitialNotificationPacket()
@@ -469,7 +606,7 @@ public class NotificationSendingModule extends CommModule
 
         Timber.d("Initial notify packet %d", notificationToSend.id);
 
-        notificationToSend.nextChunkToSend = 0;
+        notificationToSend.nextTextByteToSend = 0;
         notificationToSend.waitingForConfirmation = true;
 
         AppSettingStorage settingStorage = notificationToSend.source.getSettingStorage(getService());
@@ -482,8 +619,7 @@ public class NotificationSendingModule extends CommModule
         {
         }
 
-        PebbleDictionary data = new PebbleDictionary();
-        List<Byte> vibrationPattern = getVibrationPattern(notificationToSend, settingStorage);
+        byte[] vibrationPattern = getVibrationPattern(notificationToSend, settingStorage);
 
         int amountOfActions = 0;
         if (notificationToSend.source.getActions() != null)
@@ -502,7 +638,7 @@ public class NotificationSendingModule extends CommModule
             flags |= (byte) (settingStorage.getInt(AppSetting.SELECT_HOLD_ACTION) == 2 ? 0x20 : 0);
         }
 
-        byte[] configBytes = new byte[18 + vibrationPattern.size()];
+        byte[] configBytes = new byte[18 + vibrationPattern.length];
         configBytes[0] = flags;
         configBytes[1] = (byte) (periodicVibrationInterval >>> 0x08);
         configBytes[2] = (byte) periodicVibrationInterval;
@@ -529,7 +665,8 @@ public class NotificationSendingModule extends CommModule
             configBytes[10] = PebbleImageToolkit.getGColor8FromRGBColor(color);
         }
 
-        notificationToSend.backgroundImageData = ImageSendingModule.prepareImage(notificationToSend.source.getBigNotificationImage());
+        ensureImagesRendered(notificationToSend);
+
         if (notificationToSend.backgroundImageData == null || !getService().getPebbleCommunication().getConnectedWatchCapabilities().hasColorScreen())
         {
             configBytes[11] = 0;
@@ -548,65 +685,99 @@ public class NotificationSendingModule extends CommModule
         configBytes[15] = (byte) (notificationToSend.firstTextIndex >>> 0x08);
         configBytes[16] = (byte) notificationToSend.firstTextIndex;
 
-        configBytes[17] = (byte) vibrationPattern.size();
-
-        for (int i = 0; i < vibrationPattern.size(); i++)
-            configBytes[18 + i] = vibrationPattern.get(i);
-
-        data.addUint8(0, (byte) 1);
-        data.addUint8(1, (byte) 0);
-        data.addInt32(2, notificationToSend.id);
-        data.addBytes(3, configBytes);
-        data.addInt32(4, notificationToSend.prevId);
-        data.addUint8(999, (byte) 1);
-
-        data.addUint16(5, (short) 0); //Placeholder
+        VibrationPatterns.write(vibrationPattern, configBytes, 17);
 
         int iconSize = 0;
-        Bitmap icon = notificationToSend.source.getNotificationIcon();
-        if (icon != null)
+        byte[] iconData = notificationToSend.getIconData(getService().getPebbleCommunication().getConnectedWatchCapabilities().hasColorScreen());
+        if (iconData != null)
         {
-            PebbleCapabilities watchCapabilities = getService().getPebbleCommunication().getConnectedWatchCapabilities();
-            byte[] iconData = ImageSendingModule.prepareIcon(icon, getService(), watchCapabilities);
-            notificationToSend.iconData = iconData;
             iconSize = iconData.length;
             notificationToSend.needsIconSending = true;
         }
-        data.addUint16(5, (short) iconSize);
 
-        getService().getPebbleCommunication().sendToPebble(data);
+        new AppMessageBuilder(1, 0)
+                .addInt32(2, notificationToSend.id)
+                .addBytes(3, configBytes)
+                .addInt32(4, notificationToSend.prevId)
+                .switchToModule()
+                .addUint16(5, iconSize)
+                .send(getService());
     }
 
     private void sendMoreText()
     {
-        Timber.d("Sending more text... %d %d", curSendingNotification.id, curSendingNotification.nextChunkToSend);
+        Timber.d("Sending more text... %d %d", curSendingNotification.id, curSendingNotification.nextTextByteToSend);
 
-        PebbleDictionary data = new PebbleDictionary();
-        data.addUint8(0, (byte) 1);
-        data.addUint8(1, (byte) 1);
+        AppMessageBuilder data = new AppMessageBuilder(1, 1);
         data.addInt32(2, curSendingNotification.id);
-        data.addBytes(3, curSendingNotification.textChunks.get(curSendingNotification.nextChunkToSend));
 
-        getService().getPebbleCommunication().sendToPebble(data);
-        curSendingNotification.nextChunkToSend++;
+        byte[] textData = curSendingNotification.textData;
+
+        if (SystemModule.get(getService()).getWatchappProtocolVersion() < WatchappHandler.PROTOCOL_TEXT_WINDOW)
+        {
+            //Older watchapps expect exactly one fixed size chunk per packet
+            int size = Math.min(LEGACY_TEXT_CHUNK_SIZE, textData.length - curSendingNotification.nextTextByteToSend);
+            byte[] chunk = Arrays.copyOfRange(textData, curSendingNotification.nextTextByteToSend, curSendingNotification.nextTextByteToSend + LEGACY_TEXT_CHUNK_SIZE);
+            data.addBytes(3, chunk);
+
+            curSendingNotification.nextTextByteToSend += size;
+        }
+        else
+        {
+            //Pack as many chunks as AppMessage can fit into one packet to save round-trips
+            PebbleCapabilities watchCapabilities = getService().getPebbleCommunication().getConnectedWatchCapabilities();
+            int chunkSize = getTextChunkSize(watchCapabilities);
+
+            int key = 3;
+            while (curSendingNotification.nextTextByteToSend < textData.length && key < 3 + MAX_TEXT_CHUNKS_PER_PACKET)
+            {
+                int size = Math.min(chunkSize, textData.length - curSendingNotification.nextTextByteToSend);
+                if (key > 3 && size > data.getBytesLeft(watchCapabilities))
+                    break;
+
+                byte[] chunk = Arrays.copyOfRange(textData, curSendingNotification.nextTextByteToSend, curSendingNotification.nextTextByteToSend + size);
+                data.addBytes(key, chunk);
+
+                curSendingNotification.nextTextByteToSend += size;
+                key++;
+            }
+
+            Timber.d("Sent %d text chunks in one packet", key - 3);
+        }
+
+        data.send(getService());
+    }
+
+    /**
+     * @return Size of one text chunk, derived from the AppMessage buffer size the watch reported.
+     */
+    private static int getTextChunkSize(PebbleCapabilities watchCapabilities)
+    {
+        //Substract appmessage overhead from maximum packet size
+        // (1 byte for number of entries)
+        // (4 entries  - 4x7 bytes)
+        // (6 bytes of values of entries 0, 1 and 2)
+        int chunkSize = watchCapabilities.getMaxAppmessageSize() - 1 - 4 * 7 - 6;
+        return Math.max(LEGACY_TEXT_CHUNK_SIZE, Math.min(chunkSize, MAX_TEXT_CHUNK_SIZE));
     }
 
     private boolean sendWatchappIcon()
     {
         Timber.d("Sending icon");
 
-        PebbleDictionary data = new PebbleDictionary();
-        data.addUint8(0, (byte) 1);
-        data.addUint8(1, (byte) 2);
+        AppMessageBuilder data = new AppMessageBuilder(1, 2);
         data.addInt32(2, curSendingNotification.id);
 
         curSendingNotification.needsIconSending = false;
 
+        PebbleCapabilities watchCapabilities = getService().getPebbleCommunication().getConnectedWatchCapabilities();
+        byte[] iconData = curSendingNotification.getIconData(watchCapabilities.hasColorScreen());
+
         // Only send icon if it can fit into one Appmessage
-        if (curSendingNotification.iconData.length <= PebbleUtil.getBytesLeft(data, getService().getPebbleCommunication().getConnectedWatchCapabilities()))
+        if (iconData != null && iconData.length <= data.getBytesLeft(watchCapabilities))
         {
-            data.addBytes(3, curSendingNotification.iconData);
-            getService().getPebbleCommunication().sendToPebble(data);
+            data.addBytes(3, iconData);
+            data.send(getService());
             return true;
         }
         else
@@ -661,7 +832,7 @@ public class NotificationSendingModule extends CommModule
 
             return false;
         }
-        else if (curSendingNotification.nextChunkToSend < 0)
+        else if (curSendingNotification.nextTextByteToSend < 0)
         {
             sendInitialNotificationPacket();
         }
@@ -669,7 +840,7 @@ public class NotificationSendingModule extends CommModule
         {
             return sendWatchappIcon();
         }
-        else if (curSendingNotification.nextChunkToSend < curSendingNotification.textChunks.size())
+        else if (curSendingNotification.nextTextByteToSend < curSendingNotification.textData.length)
         {
             sendMoreText();
         }
@@ -695,43 +866,24 @@ public class NotificationSendingModule extends CommModule
         }
     }
 
-    @Override
-    public void gotIntent(Intent intent)
+    private void gotNotification(final PebbleNotification notification)
     {
-        if (intent.getAction().equals(INTENT_NOTIFICATION))
+        // Process summary notifications 500ms later than others to make sure
+        // any non-summary notifications can get processed first
+        if (notification.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_GROUP_SUMMARY)
         {
-            final PebbleNotification notification = processingQueue.poll();
-            if (notification == null)
-                return;
-
-            // Process summary notifications 500ms later than others to make sure
-            // any non-summary notifications can get processed first
-            if (notification.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_GROUP_SUMMARY)
+            getService().runOnPebbleThreadDelayed(new Runnable()
             {
-                getService().runOnPebbleThreadDelayed(new Runnable()
+                @Override
+                public void run()
                 {
-                    @Override
-                    public void run()
-                    {
-                        processNotification(notification);
-                    }
-                }, 500);
-            }
-            else
-            {
-                processNotification(notification);
-            }
-        }
-        else if (intent.getAction().equals(INTENT_MUTE_APP_TEMPORARILY))
-        {
-            String appPackage = intent.getStringExtra("AppPackage");
-            long until = intent.getLongExtra("MutedUntil", 0);
-
-            temporaryMutes.put(appPackage, until);
+                    processNotification(notification);
+                }
+            }, 500);
         }
-        else if (intent.getAction().equals(INTENT_CLEAR_TEMPORARY_MUTES))
+        else
         {
-            temporaryMutes.clear();
+            processNotification(notification);
         }
     }
 
@@ -750,7 +902,7 @@ public class NotificationSendingModule extends CommModule
         }
     }
 
-    private List<Byte> getVibrationPattern(ProcessedNotification notification, AppSettingStorage settingStorage)
+    private byte[] getVibrationPattern(ProcessedNotification notification, AppSettingStorage settingStorage)
     {
         Long lastVibration = lastAppVibration.get(notification.source.getKey().getPackage());
         int minInterval = 0;
@@ -773,15 +925,12 @@ public class NotificationSendingModule extends CommModule
 
             long[] forcedVibrationPattern = notification.source.getForcedVibrationPattern();
             if (forcedVibrationPattern == null)
-                return PebbleVibrationPattern.parseVibrationPattern(settingStorage.getString(AppSetting.VIBRATION_PATTERN));
-            return PebbleVibrationPattern.getFromAndroidVibrationPattern(forcedVibrationPattern);
+                return VibrationPatterns.parse(settingStorage.getString(AppSetting.VIBRATION_PATTERN));
+            return VibrationPatterns.fromAndroidVibrationPattern(forcedVibrationPattern);
         }
         else
         {
-            ArrayList<Byte> list = new ArrayList<Byte>(2);
-            list.add((byte) 0);
-            list.add((byte) 0);
-            return list;
+            return VibrationPatterns.NO_VIBRATION;
         }
     }
 
@@ -791,10 +940,10 @@ public class NotificationSendingModule extends CommModule
         if (notification.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_GROUP_SUMMARY && groupNotificationEnabled)
         {
             //This is summary notification. Only display it if there are no non-summary notifications from the same group already displayed.
-            SparseArray<ProcessedNotification> sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
-            for (int i = 0; i < sentNotifications.size(); i++)
+            SentNotificationRegistry sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
+            for (ProcessedNotification sentNotification : sentNotifications.getByWearGroup(notification.getWearGroupKey()))
             {
-                PebbleNotification comparing = sentNotifications.valueAt(i).source;
+                PebbleNotification comparing = sentNotification.source;
                 if (comparing.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_GROUP_MESSAGE && comparing.getKey().getPackage() != null && comparing.getKey().getPackage().equals(notification.getKey().getPackage()) && comparing.getWearGroupKey().equals(notification.getWearGroupKey()))
                 {
                     Timber.d("group notify failed - summary with existing non-summary notifications");
@@ -810,12 +959,11 @@ public class NotificationSendingModule extends CommModule
         boolean sendIdentical = settingStorage.getBoolean(AppSetting.SEND_IDENTICAL_NOTIFICATIONS);
         if (notification.getWearGroupType() == PebbleNotification.WEAR_GROUP_TYPE_GROUP_MESSAGE || !sendIdentical)
         {
-            SparseArray<ProcessedNotification> sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
+            SentNotificationRegistry sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
 
-            //Prevent re-sending of the first message.
-            for (int i = 0; i < sentNotifications.size(); i++)
+            //Prevent re-sending of the first message. Identical content can only come from the same package.
+            for (ProcessedNotification comparing : sentNotifications.getByPackage(notification.getKey().getPackage()))
             {
-                ProcessedNotification comparing = sentNotifications.valueAt(i);
                 if ((comparing.source.getWearGroupType() != PebbleNotification.WEAR_GROUP_TYPE_GROUP_SUMMARY || !sendIdentical) && notification.hasIdenticalContent(comparing.source))
                 {
                     Timber.d("group notify failed - same notification exists");
@@ -875,31 +1023,69 @@ public class NotificationSendingModule extends CommModule
         return curSendingNotification;
     }
 
-    public static void notify(PebbleNotification notification, Context context)
+    /**
+     * @return Number of notification transfers that were skipped because newer notification replaced them while queued.
+     */
+    public int getCoalescedTransfers()
     {
-        processingQueue.add(notification);
+        return coalescedTransfers;
+    }
 
-        Intent intent = new Intent(context, NCTalkerService.class);
-        intent.setAction(INTENT_NOTIFICATION);
-        context.startService(intent);
+    /**
+     * @return Number of payload bytes that did not need to be sent because of coalescing.
+     */
+    public long getCoalescedBytes()
+    {
+        return coalescedBytes;
     }
 
-    public static void muteApp(Context context, String appPackage, long until)
+    public void shutdown()
     {
-        Intent intent = new Intent(context, NCTalkerService.class);
-        intent.setAction(INTENT_MUTE_APP_TEMPORARILY);
-        intent.putExtra("AppPackage", appPackage);
-        intent.putExtra("MutedUntil", until);
+        Timber.d("Coalesced %d transfers (%d bytes)", coalescedTransfers, coalescedBytes);
 
-        context.startService(intent);
+        Timber.d("%s", ImageRenderCache.getInstance());
+
+        SentNotificationRegistry sentNotifications = NCTalkerService.fromPebbleTalkerService(getService()).sentNotifications;
+        Timber.d("Sent notifications: %d entries holding %d bytes of payload, %d payloads evicted", sentNotifications.size(), sentNotifications.getResidentPayloadBytes(), sentNotifications.getEvictedPayloads());
+
+        pipeline.logStatistics();
+        pipeline.shutdown();
     }
 
-    public static void clearTemporaryMutes(Context context)
+    public static void notify(final PebbleNotification notification, Context context)
     {
-        Intent intent = new Intent(context, NCTalkerService.class);
-        intent.setAction(INTENT_CLEAR_TEMPORARY_MUTES);
+        ServiceHandoff.post(context, new ServiceHandoff.Command()
+        {
+            @Override
+            public void execute(PebbleTalkerService service)
+            {
+                get(service).gotNotification(notification);
+            }
+        });
+    }
 
-        context.startService(intent);
+    public static void muteApp(Context context, final String appPackage, final long until)
+    {
+        ServiceHandoff.post(context, new ServiceHandoff.Command()
+        {
+            @Override
+            public void execute(PebbleTalkerService service)
+            {
+                get(service).temporaryMutes.put(appPackage, until);
+            }
+        });
+    }
+
+    public static void clearTemporaryMutes(Context context)
+    {
+        ServiceHandoff.post(context, new ServiceHandoff.Command()
+        {
+            @Override
+            public void execute(PebbleTalkerService service)
+            {
+                get(service).temporaryMutes.clear();
+            }
+        });
     }
 
     public static NotificationSendingModule get(PebbleTalkerService service)
@@ -937,7 +1123,7 @@ public class NotificationSendingModule extends CommModule
         }
     }
 
-    private enum FilteringResult
+    enum FilteringResult
     {
         SEND,
         ONLY_SAVE_TO_HISTORY,
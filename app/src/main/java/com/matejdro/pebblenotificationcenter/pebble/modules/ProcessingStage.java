@@ -0,0 +1,115 @@
+package com.matejdro.pebblenotificationcenter.pebble.modules;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Worker pool for one stage of the {@link NotificationPipeline}.
+ *
+ * Queue of the stage is bounded. When it fills up, task is executed on the submitting thread instead,
+ * which slows down previous stage until this one catches up (back-pressure).
+ * Stages that are fed from the Pebble thread must use {@link #UNBOUNDED_QUEUE}, so their work never runs on it.
+ */
+public class ProcessingStage
+{
+    public static final int UNBOUNDED_QUEUE = -1;
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger processedTasks = new AtomicInteger();
+    private final AtomicInteger throttledTasks = new AtomicInteger();
+
+    public ProcessingStage(final String name, int threads, int queueCapacity)
+    {
+        this.name = name;
+
+        ThreadFactory threadFactory = new ThreadFactory()
+        {
+            private final AtomicInteger threadCounter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "NC-" + name + "-" + threadCounter.incrementAndGet());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        };
+
+        BlockingQueue<Runnable> queue;
+        if (queueCapacity == UNBOUNDED_QUEUE)
+            queue = new LinkedBlockingQueue<>();
+        else
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, queue, threadFactory, new ThreadPoolExecutor.CallerRunsPolicy()
+        {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+            {
+                throttledTasks.incrementAndGet();
+                Timber.d("Stage %s is saturated. Running task on the caller thread.", ProcessingStage.this.name);
+
+                super.rejectedExecution(runnable, executor);
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void submit(final Runnable task)
+    {
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (Exception e)
+                {
+                    Timber.e(e, "Stage %s task failed!", name);
+                }
+
+                processedTasks.incrementAndGet();
+            }
+        });
+    }
+
+    public int getQueueSize()
+    {
+        return executor.getQueue().size();
+    }
+
+    public int getProcessedTasks()
+    {
+        return processedTasks.get();
+    }
+
+    /**
+     * @return Number of tasks that had to be executed on the submitting thread because stage queue was full.
+     */
+    public int getThrottledTasks()
+    {
+        return throttledTasks.get();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+}
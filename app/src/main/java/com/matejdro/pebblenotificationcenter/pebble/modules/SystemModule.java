@@ -2,6 +2,7 @@ package com.matejdro.pebblenotificationcenter.pebble.modules;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.util.SparseArray;
 
 import com.getpebble.android.kit.PebbleKit;
@@ -10,13 +11,15 @@ import com.luckycatlabs.sunrisesunset.SunriseSunsetCalculator;
 import com.matejdro.pebblecommons.pebble.CommModule;
 import com.matejdro.pebblecommons.pebble.PebbleCommunication;
 import com.matejdro.pebblecommons.pebble.PebbleTalkerService;
-import com.matejdro.pebblecommons.vibration.PebbleVibrationPattern;
 import com.matejdro.pebblenotificationcenter.NCTalkerService;
 import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
+import com.matejdro.pebblenotificationcenter.ServiceHandoff;
 import com.matejdro.pebblenotificationcenter.notifications.NotificationHandler;
+import com.matejdro.pebblenotificationcenter.pebble.AppMessageBuilder;
+import com.matejdro.pebblenotificationcenter.pebble.NotificationCenterDeveloperConnection;
+import com.matejdro.pebblenotificationcenter.pebble.VibrationPatterns;
 import com.matejdro.pebblenotificationcenter.pebble.WatchappHandler;
 
-import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 
@@ -34,8 +37,14 @@ public class SystemModule extends CommModule
 
     public static final String INTENT_PEBBLE_CONNECTED = "PebbleConnected";
 
+    //Watch does not report app switches, so running app is only queried again when last result is older than this
+    private static final long RUNNING_APP_CACHE_TTL = 3000;
+
     private Callable<Boolean> runOnNext;
-    private UUID currentRunningApp;
+    //Also read by notification render stage
+    private volatile UUID currentRunningApp;
+    private long runningAppCheckTime = 0;
+    private int watchappProtocolVersion = WatchappHandler.MIN_SUPPORTED_PROTOCOL;
 
     private int closeTries = 0;
 
@@ -43,6 +52,7 @@ public class SystemModule extends CommModule
     {
         super(service);
         service.registerIntent(INTENT_PEBBLE_CONNECTED, this);
+        service.registerIntent(ServiceHandoff.INTENT_DRAIN, this);
 
         runOnNext = null;
     }
@@ -71,14 +81,9 @@ public class SystemModule extends CommModule
 
     private void sendConfig()
     {
-        PebbleDictionary data = new PebbleDictionary();
-
-        data.addUint8(0, (byte) 0);
-        data.addUint8(1, (byte) 0);
-
-        List<Byte> vibrationPattern = PebbleVibrationPattern.parseVibrationPattern(getService().getGlobalSettings().getString(PebbleNotificationCenter.PERIODIC_VIBRATION_PATTERN, "100"));
+        byte[] vibrationPattern = VibrationPatterns.parse(getService().getGlobalSettings().getString(PebbleNotificationCenter.PERIODIC_VIBRATION_PATTERN, "100"));
 
-        byte[] configBytes = new byte[15 + vibrationPattern.size()];
+        byte[] configBytes = new byte[15 + vibrationPattern.length];
 
         int timeout = 0;
         try
@@ -137,8 +142,8 @@ public class SystemModule extends CommModule
 
         configBytes[7] = flags;
 
-        configBytes[8] = (byte) (WatchappHandler.SUPPORTED_PROTOCOL >>> 0x08);
-        configBytes[9] = (byte) WatchappHandler.SUPPORTED_PROTOCOL;
+        configBytes[8] = (byte) (watchappProtocolVersion >>> 0x08);
+        configBytes[9] = (byte) watchappProtocolVersion;
         configBytes[11] = (byte) (vibratingTimeout >>> 0x08);
         configBytes[12] = (byte) vibratingTimeout;
 
@@ -151,16 +156,13 @@ public class SystemModule extends CommModule
         secondFlags |= (byte) (getService().getGlobalSettings().getBoolean(PebbleNotificationCenter.RESPECT_ON_WATCH_QUIET_TIME, true) ? 0x20 : 0);
         configBytes[13] = secondFlags;
 
-        configBytes[14] = (byte) vibrationPattern.size();
-        for (int i = 0; i < vibrationPattern.size(); i++)
-            configBytes[15 + i] = vibrationPattern.get(i);
-
-
-        data.addBytes(2, configBytes);
+        VibrationPatterns.write(vibrationPattern, configBytes, 14);
 
         Timber.d("Sending config...");
 
-        getService().getPebbleCommunication().sendToPebble(data);
+        new AppMessageBuilder(0, 0)
+                .addBytes(2, configBytes)
+                .send(getService());
     }
 
     private void sendConfigInvalidVersion(int version)
@@ -198,13 +200,14 @@ public class SystemModule extends CommModule
             }
         };
 
-        if (version < WatchappHandler.SUPPORTED_PROTOCOL)
+        if (version < WatchappHandler.MIN_SUPPORTED_PROTOCOL)
             WatchappHandler.showUpdateNotification(getService());
     }
 
     private void gotMessagePebbleOpened(PebbleDictionary message)
     {
         closeTries = 0;
+        invalidateRunningApp();
 
         int version = 0;
         if (message.contains(2))
@@ -214,8 +217,10 @@ public class SystemModule extends CommModule
 
         final int finalVersion = version;
 
-        if (version == WatchappHandler.SUPPORTED_PROTOCOL)
+        if (WatchappHandler.isProtocolSupported(version))
         {
+            watchappProtocolVersion = version;
+
             runOnNext = new Callable<Boolean>()
             {
                 @Override
@@ -260,14 +265,9 @@ public class SystemModule extends CommModule
             @Override
             public Boolean call() throws Exception
             {
-                PebbleDictionary data = new PebbleDictionary();
-
-                data.addUint8(0, (byte) 0);
-                data.addUint8(1, (byte) 1);
-
                 Timber.d("Sending hide hourglass...");
 
-                getService().getPebbleCommunication().sendToPebble(data);
+                new AppMessageBuilder(0, 1).send(getService());
 
 
                 return true;
@@ -325,6 +325,8 @@ public class SystemModule extends CommModule
     {
         if (intent.getAction().equals(INTENT_PEBBLE_CONNECTED))
         {
+            invalidateRunningApp();
+
             PebbleCommunication communication = getService().getPebbleCommunication();
             communication.resetBusy();
             communication.sendNext();
@@ -337,7 +339,23 @@ public class SystemModule extends CommModule
                 openApp();
             }
         }
+        else if (intent.getAction().equals(ServiceHandoff.INTENT_DRAIN))
+        {
+            //Native notifications queued by handed off commands are sent to the watch together
+            NotificationCenterDeveloperConnection developerConnection = NotificationCenterDeveloperConnection.fromDevConn(getService().getDeveloperConnection());
+            if (developerConnection != null)
+                developerConnection.beginBatch();
 
+            try
+            {
+                ServiceHandoff.drain(getService());
+            }
+            finally
+            {
+                if (developerConnection != null)
+                    developerConnection.endBatch();
+            }
+        }
     }
 
     @Override
@@ -368,8 +386,17 @@ public class SystemModule extends CommModule
         }
     }
 
+    /**
+     * Query the watch for currently running app, unless it was queried recently.
+     */
     public void updateCurrentlyRunningApp()
     {
+        long now = SystemClock.elapsedRealtime();
+        if (runningAppCheckTime != 0 && now - runningAppCheckTime < RUNNING_APP_CACHE_TTL)
+            return;
+
+        runningAppCheckTime = now;
+
         UUID newApp = getService().getDeveloperConnection().getCurrentRunningApp();
 
         if (newApp == null)
@@ -382,6 +409,22 @@ public class SystemModule extends CommModule
         }
     }
 
+    /**
+     * Make next {@link #updateCurrentlyRunningApp()} query the watch. Must be called whenever we know running app has changed.
+     */
+    public void invalidateRunningApp()
+    {
+        runningAppCheckTime = 0;
+    }
+
+    /**
+     * @return Protocol version of the currently connected watchapp.
+     */
+    public int getWatchappProtocolVersion()
+    {
+        return watchappProtocolVersion;
+    }
+
     public UUID getCurrentRunningApp()
     {
         return currentRunningApp;
@@ -390,6 +433,7 @@ public class SystemModule extends CommModule
     public void openApp()
     {
         PebbleKit.startAppOnPebble(getService(), PebbleNotificationCenter.WATCHAPP_UUID);
+        invalidateRunningApp();
     }
 
     public void closeApp()
@@ -410,6 +454,7 @@ public class SystemModule extends CommModule
         editor.apply();
 
         closeTries++;
+        invalidateRunningApp();
     }
 
     private static boolean canCloseToApp(UUID uuid)
@@ -20,6 +20,7 @@ import com.matejdro.pebblecommons.util.LogWriter;
 import com.matejdro.pebblecommons.vibration.PebbleVibrationPattern;
 import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
 import com.matejdro.pebblenotificationcenter.R;
+import com.matejdro.pebblenotificationcenter.pebble.ImageRenderCache;
 import com.matejdro.pebblenotificationcenter.pebble.WatchappHandler;
 
 import de.psdev.licensesdialog.LicensesDialog;
@@ -52,6 +53,17 @@ public class SettingsActivity extends PreferenceActivity implements ActivityComp
             }
         });
 
+        findPreference(PebbleNotificationCenter.IMAGE_DISK_CACHE).setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener()
+        {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue)
+            {
+                if (!(Boolean) newValue)
+                    ImageRenderCache.getInstance().clearDisk();
+                return true;
+            }
+        });
+
         Preference notifierLicenseButton = findPreference("notifierLicense");
         notifierLicenseButton.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener()
         {
@@ -76,6 +88,14 @@ public class SettingsActivity extends PreferenceActivity implements ActivityComp
         timeoutPreference.getEditText().setInputType(InputType.TYPE_CLASS_NUMBER);
         timeoutPreference = (EditTextPreference) findPreference("lightTimeout");
         timeoutPreference.getEditText().setInputType(InputType.TYPE_CLASS_NUMBER);
+        timeoutPreference = (EditTextPreference) findPreference(PebbleNotificationCenter.SENT_NOTIFICATIONS_MEMORY_KB);
+        timeoutPreference.getEditText().setInputType(InputType.TYPE_CLASS_NUMBER);
+
+        for (String key : new String[] { PebbleNotificationCenter.HISTORY_MAX_NOTIFICATIONS, PebbleNotificationCenter.HISTORY_MAX_AGE_DAYS, PebbleNotificationCenter.HISTORY_MAX_SIZE_KB })
+        {
+            EditTextPreference historyPreference = (EditTextPreference) findPreference(key);
+            historyPreference.getEditText().setInputType(InputType.TYPE_CLASS_NUMBER);
+        }
 
         try
         {
@@ -3,27 +3,58 @@ package com.matejdro.pebblenotificationcenter.util;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
+import android.support.annotation.Nullable;
 
 import com.matejdro.pebblecommons.util.PreferencesUtil;
 import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
+import com.matejdro.pebblenotificationcenter.appsetting.AppSettingStorage;
+import com.matejdro.pebblenotificationcenter.appsetting.AppSettingsCache;
 import com.matejdro.pebblenotificationcenter.appsetting.DefaultAppSettingsStorage;
+import com.matejdro.pebblenotificationcenter.notifications.AppMetadataCache;
+import com.matejdro.pebblenotificationcenter.pebble.IconKeywordMatcher;
+import com.matejdro.pebblenotificationcenter.pebble.NativeNotificationIcon;
 import java.util.HashMap;
 import java.util.Iterator;
 
 public class SettingsMemoryStorage {
 	private Context context;	
 	
-	private boolean dirty = true;
+	//Settings are read from several threads. Loaded objects are published through volatile fields.
+	private volatile boolean dirty = true;
+	private volatile boolean loaded = false;
 	
-	private SharedPreferences preferences;
-    private DefaultAppSettingsStorage appSettingsStorage;
-	private HashMap<String, String> replacingStrings;
+	private volatile SharedPreferences preferences;
+    private volatile DefaultAppSettingsStorage appSettingsStorage;
+	private volatile TextReplacer textReplacer;
+	private volatile IconKeywordMatcher iconKeywordMatcher;
+	private AppSettingsCache appSettingsCache;
+
+	//Preferences only keep weak reference to the listener, so we must hold it here.
+	private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener()
+	{
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
+		{
+			//Listener is called after new value is stored, so matcher is never rebuilt from old rules
+			if (PebbleNotificationCenter.CUSTOM_ICON_KEYWORDS.equals(key))
+			{
+				//Rebuild matcher before memoized icons are dropped, so apps are never matched again with old rules
+				markDirty();
+				ensureLoaded();
+
+				//Icons are memoized per app, so every app must be matched again with new rules
+				AppMetadataCache.getInstance(context).invalidateAll();
+			}
+		}
+	};
 	
 	public SettingsMemoryStorage(Context context)
 	{
 		this.context = context;
 		this.preferences = PreferenceManager.getDefaultSharedPreferences(context);
-		this.replacingStrings = new HashMap<String, String>();
+		this.appSettingsCache = new AppSettingsCache(context);
+
+		preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
 	}
 	
 	public void markDirty()
@@ -31,51 +62,81 @@ public class SettingsMemoryStorage {
 		dirty = true;
 	}
 	
-	private void loadSettings()
+	private void ensureLoaded()
 	{
-		replacingStrings.clear();
+		if (dirty || !loaded)
+			loadSettings();
+	}
+
+	private synchronized void loadSettings()
+	{
+		//Another thread might have loaded settings while we were waiting
+		if (!dirty && loaded)
+			return;
+
+		//Cleared before reading, so markDirty() that arrives during loading triggers another load
+		dirty = false;
 
 		preferences = PreferenceManager.getDefaultSharedPreferences(context);
         appSettingsStorage = new DefaultAppSettingsStorage(preferences, preferences.edit());
 
 		Iterator<String> replacingKeys = PreferencesUtil.getDirectIterator(preferences, PebbleNotificationCenter.REPLACING_KEYS_LIST);
 		Iterator<String> replacingValues = PreferencesUtil.getDirectIterator(preferences, PebbleNotificationCenter.REPLACING_VALUES_LIST);
+		HashMap<String, String> replacingStrings = new HashMap<String, String>();
 		while (replacingKeys.hasNext() && replacingValues.hasNext())
 		{
 			String keyString = replacingKeys.next();
+			String valueString = replacingValues.next();
 			if (keyString.isEmpty())
 				continue;
-			
-			String valueString = replacingValues.next();
-			
+
 			replacingStrings.put(keyString, valueString);
 		}
 
-		dirty = false;
+		//Table is only compiled here, so it is rebuilt only after markDirty()
+		textReplacer = new TextReplacer(replacingStrings);
+
+		String customIconRules = preferences.getString(PebbleNotificationCenter.CUSTOM_ICON_KEYWORDS, null);
+		iconKeywordMatcher = NativeNotificationIcon.compileKeywordMatcher(NativeNotificationIcon.parseKeywordRules(customIconRules));
+
+		loaded = true;
 	}
 	
 	public SharedPreferences getSharedPreferences()
 	{
-		if (dirty)
-			loadSettings();
+		ensureLoaded();
 		
 		return preferences;
 	}
 
     public DefaultAppSettingsStorage getDefaultSettingsStorage()
     {
-        if (dirty)
-            loadSettings();
+        ensureLoaded();
 
         return appSettingsStorage;
     }
 
 
-	public HashMap<String, String> getReplacingStrings()
+    /**
+     * @param appPackage Package of the app or {@code null} for default settings.
+     * @return In-memory settings of the app that are kept up to date with preference changes.
+     */
+    public AppSettingStorage getAppSettingStorage(@Nullable String appPackage)
+    {
+        return appSettingsCache.getStorage(appPackage);
+    }
+
+	public IconKeywordMatcher getIconKeywordMatcher()
+	{
+		ensureLoaded();
+
+		return iconKeywordMatcher;
+	}
+
+	public TextReplacer getTextReplacer()
 	{
-		if (dirty)
-			loadSettings();
-		
-		return replacingStrings;
+		ensureLoaded();
+
+		return textReplacer;
 	}
 }
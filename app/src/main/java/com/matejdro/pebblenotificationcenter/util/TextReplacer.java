@@ -0,0 +1,158 @@
+package com.matejdro.pebblenotificationcenter.util;
+
+import com.matejdro.pebblecommons.util.TextUtil;
+import com.matejdro.pebblenotificationcenter.PebbleNotificationCenter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * User's character replacement table compiled into a trie.
+ *
+ * Text is rewritten in one pass from left to right. At every position longest matching key is replaced,
+ * replaced text is not scanned again.
+ */
+public class TextReplacer
+{
+    private final Node root;
+
+    public TextReplacer(Map<String, String> replacements)
+    {
+        BuildNode buildRoot = new BuildNode();
+        for (Map.Entry<String, String> replacement : replacements.entrySet())
+        {
+            String key = replacement.getKey();
+            if (key.isEmpty())
+                continue;
+
+            BuildNode node = buildRoot;
+            for (int i = 0; i < key.length(); i++)
+            {
+                BuildNode child = node.children.get(key.charAt(i));
+                if (child == null)
+                {
+                    child = new BuildNode();
+                    node.children.put(key.charAt(i), child);
+                }
+
+                node = child;
+            }
+
+            node.replacement = replacement.getValue();
+        }
+
+        root = buildRoot.compile();
+    }
+
+    public String replace(String text)
+    {
+        if (root.keys.length == 0)
+            return text;
+
+        StringBuilder result = null;
+        int copiedUntil = 0;
+
+        int position = 0;
+        while (position < text.length())
+        {
+            Node node = root;
+            String replacement = null;
+            int matchEnd = -1;
+
+            for (int i = position; i < text.length(); i++)
+            {
+                node = node.getChild(text.charAt(i));
+                if (node == null)
+                    break;
+
+                if (node.replacement != null)
+                {
+                    replacement = node.replacement;
+                    matchEnd = i + 1;
+                }
+            }
+
+            if (replacement == null)
+            {
+                position++;
+                continue;
+            }
+
+            if (result == null)
+                result = new StringBuilder(text.length() + 16);
+
+            result.append(text, copiedUntil, position).append(replacement);
+            copiedUntil = matchEnd;
+            position = matchEnd;
+        }
+
+        if (result == null)
+            return text;
+
+        result.append(text, copiedUntil, text.length());
+        return result.toString();
+    }
+
+    /**
+     * Apply user's replacements and prepare text for the watch.
+     */
+    public static String prepareString(String text)
+    {
+        return TextUtil.prepareString(getCurrent().replace(text));
+    }
+
+    /**
+     * Apply user's replacements and prepare text for the watch.
+     */
+    public static String prepareString(String text, int length)
+    {
+        return TextUtil.prepareString(getCurrent().replace(text), length);
+    }
+
+    public static TextReplacer getCurrent()
+    {
+        return PebbleNotificationCenter.getInMemorySettings().getTextReplacer();
+    }
+
+    private static class BuildNode
+    {
+        private final HashMap<Character, BuildNode> children = new HashMap<>();
+        private String replacement;
+
+        private Node compile()
+        {
+            char[] keys = new char[children.size()];
+            int i = 0;
+            for (Character key : children.keySet())
+                keys[i++] = key;
+            Arrays.sort(keys);
+
+            Node[] compiledChildren = new Node[keys.length];
+            for (i = 0; i < keys.length; i++)
+                compiledChildren[i] = children.get(keys[i]).compile();
+
+            return new Node(keys, compiledChildren, replacement);
+        }
+    }
+
+    private static class Node
+    {
+        private final char[] keys;
+        private final Node[] children;
+        private final String replacement;
+
+        private Node(char[] keys, Node[] children, String replacement)
+        {
+            this.keys = keys;
+            this.children = children;
+            this.replacement = replacement;
+        }
+
+        private Node getChild(char c)
+        {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+    }
+}